@@ -0,0 +1,166 @@
+package algos;
+
+import java.util.Arrays;
+
+/**
+ * Bounded pool of zeroed level3 blocks and empty level2 areas for {@link SparseBitSet}s, set with
+ * {@link SparseBitSet#setBlockPool(BlockPool)}. The sets give back the bitmap blocks and the areas they drop, e.g. on
+ * {@link SparseBitSet#clear()}, and take them from the pool instead of allocating new ones, which cuts the allocation
+ * rate when bit sets are cleared and filled again and again, e.g. one per time window. Array containers vary in length
+ * and stay small, so they aren't pooled.
+ * <p>
+ * The pool isn't thread-safe: it may be shared by several sets only if they are all used by the same thread. It
+ * keeps counters of its hits and misses, see {@link #toString()}.
+ */
+public class BlockPool {
+
+    public static final int DEFAULT_MAX_BLOCKS = 1024;
+
+    public static final int DEFAULT_MAX_AREAS = 64;
+
+    private final long[][] blocks;
+    private final long[][][] areas;
+    private int blockCount;
+    private int areaCount;
+
+    private long blockHits;
+    private long blockMisses;
+    private long areaHits;
+    private long areaMisses;
+    private long recycled;
+    private long discarded;
+
+    public BlockPool() {
+        this(DEFAULT_MAX_BLOCKS, DEFAULT_MAX_AREAS);
+    }
+
+    /**
+     * @param maxBlocks the maximum number of level3 blocks kept, each takes 256 bytes
+     * @param maxAreas  the maximum number of level2 areas kept, each takes 32 references
+     */
+    public BlockPool(int maxBlocks, int maxAreas) {
+        if (maxBlocks < 0 || maxAreas < 0) {
+            throw new IllegalArgumentException("maxBlocks=" + maxBlocks + ", maxAreas=" + maxAreas);
+        }
+        blocks = new long[maxBlocks][];
+        areas = new long[maxAreas][][];
+    }
+
+    /**
+     * @return a level3 block of zero words, from the pool if it holds one
+     */
+    long[] block() {
+        if (blockCount == 0) {
+            blockMisses++;
+            return new long[SparseBitSet.LENGTH3];
+        }
+        blockHits++;
+        final long[] a3 = blocks[--blockCount];
+        blocks[blockCount] = null;
+        return a3;
+    }
+
+    /**
+     * @return a level2 area of null blocks, from the pool if it holds one
+     */
+    long[][] area() {
+        if (areaCount == 0) {
+            areaMisses++;
+            return new long[SparseBitSet.LENGTH2][];
+        }
+        areaHits++;
+        final long[][] a2 = areas[--areaCount];
+        areas[areaCount] = null;
+        return a2;
+    }
+
+    /**
+     * Takes back a block which is no longer referenced by any set, array containers are ignored
+     */
+    void recycle(long[] a3) {
+        if (a3 == null || a3.length != SparseBitSet.LENGTH3) return;
+        if (blockCount == blocks.length) {
+            discarded++;
+            return;
+        }
+        Arrays.fill(a3, 0L);
+        blocks[blockCount++] = a3;
+        recycled++;
+    }
+
+    /**
+     * Takes back an area which is no longer referenced by any set, along with its blocks
+     */
+    void recycle(long[][] a2) {
+        if (a2 == null) return;
+        for (int w2 = 0; w2 < a2.length; w2++) {
+            recycle(a2[w2]);
+            a2[w2] = null;
+        }
+        if (areaCount == areas.length) {
+            discarded++;
+            return;
+        }
+        areas[areaCount++] = a2;
+        recycled++;
+    }
+
+    /**
+     * @return the number of blocks and areas taken from the pool
+     */
+    public long hits() {
+        return blockHits + areaHits;
+    }
+
+    /**
+     * @return the number of blocks and areas allocated because the pool was empty
+     */
+    public long misses() {
+        return blockMisses + areaMisses;
+    }
+
+    /**
+     * @return the share of the requests served from the pool, 0 if there was none
+     */
+    public double hitRate() {
+        final long requests = hits() + misses();
+        return requests == 0 ? 0 : (double) hits() / requests;
+    }
+
+    /**
+     * @return the number of blocks and areas given back to the pool and kept
+     */
+    public long recycled() {
+        return recycled;
+    }
+
+    /**
+     * @return the number of blocks and areas given back while the pool was full, left to the GC
+     */
+    public long discarded() {
+        return discarded;
+    }
+
+    /**
+     * @return the number of blocks held now
+     */
+    public int blocks() {
+        return blockCount;
+    }
+
+    /**
+     * @return the number of areas held now
+     */
+    public int areas() {
+        return areaCount;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockPool{blocks=" + blockCount + "/" + blocks.length
+                + ", areas=" + areaCount + "/" + areas.length
+                + ", blockHits=" + blockHits + ", blockMisses=" + blockMisses
+                + ", areaHits=" + areaHits + ", areaMisses=" + areaMisses
+                + ", recycled=" + recycled + ", discarded=" + discarded + "}";
+    }
+}
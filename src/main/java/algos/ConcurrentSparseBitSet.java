@@ -0,0 +1,190 @@
+package algos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static algos.SparseBitSet.LENGTH2;
+import static algos.SparseBitSet.LENGTH3;
+import static algos.SparseBitSet.MASK2;
+import static algos.SparseBitSet.MASK3;
+import static algos.SparseBitSet.MAX_LENGTH1;
+import static algos.SparseBitSet.SHIFT1;
+import static algos.SparseBitSet.SHIFT2;
+import static algos.SparseBitSet.SHIFT3;
+
+/**
+ * A set of bits with the same three level layout as {@link SparseBitSet}, which may be updated by many threads at
+ * once without external synchronization. It's meant to be filled by parallel ingestion and then converted into a
+ * {@link SparseBitSet} with {@link #toSparseBitSet()} for querying.
+ * <p>
+ * The level1 array is allocated at its maximal length up front, so it's never resized. Level2 areas and level3
+ * blocks are created lazily and published with a CAS, the loser of a race just drops its copy. Words are updated
+ * with CAS loops, so concurrent updates of bits sharing a word are never lost.
+ * <p>
+ * {@link #cardinality()} is exact once all updates have completed; while they are running it may miss the
+ * in-flight ones.
+ */
+public class ConcurrentSparseBitSet {
+
+    private final AtomicReferenceArray<AtomicReferenceArray<AtomicLongArray>> bits = new AtomicReferenceArray<>(MAX_LENGTH1);
+
+    private final LongAdder cardinality = new LongAdder();
+
+    /**
+     * Sets the bit at the specified index.
+     *
+     * @param i a bit index
+     * @return true if the bit wasn't set before
+     * @throws IndexOutOfBoundsException if the specified index is negative or equal to Integer.MAX_VALUE
+     */
+    public boolean set(int i) {
+        if ((i + 1) < 1) throw new IndexOutOfBoundsException("i=" + i);
+        final int w = i >> SHIFT3;
+        final AtomicLongArray a3 = block(area(w >> SHIFT1), (w >> SHIFT2) & MASK2);
+        final int w3 = w & MASK3;
+        final long bit = 1L << i;
+        long word;
+        do {
+            word = a3.get(w3);
+            if ((word & bit) != 0) return false;
+        } while (!a3.compareAndSet(w3, word, word | bit));
+        cardinality.increment();
+        return true;
+    }
+
+    /**
+     * Sets the bits at the indices held by the {@code from} (inclusive) to {@code to} (exclusive) part of the given
+     * array.
+     */
+    public void setAll(int[] indices, int from, int to) {
+        for (int n = from; n < to; n++) {
+            set(indices[n]);
+        }
+    }
+
+    /**
+     * Sets the bit at the specified index to false.
+     *
+     * @param i a bit index
+     * @return true if the bit was set before
+     * @throws IndexOutOfBoundsException if the specified index is negative or equal to Integer.MAX_VALUE
+     */
+    public boolean clear(int i) {
+        if ((i + 1) < 1) throw new IndexOutOfBoundsException("i=" + i);
+        final int w = i >> SHIFT3;
+        final AtomicReferenceArray<AtomicLongArray> a2 = bits.get(w >> SHIFT1);
+        final AtomicLongArray a3;
+        if (a2 == null || (a3 = a2.get((w >> SHIFT2) & MASK2)) == null) return false;
+        final int w3 = w & MASK3;
+        final long bit = 1L << i;
+        long word;
+        do {
+            word = a3.get(w3);
+            if ((word & bit) == 0) return false;
+        } while (!a3.compareAndSet(w3, word, word & ~bit));
+        cardinality.decrement();
+        return true;
+    }
+
+    /**
+     * @param i the bit index
+     * @return the value of the bit with the specified index
+     * @throws IndexOutOfBoundsException if the specified index is negative or equal to Integer.MAX_VALUE
+     */
+    public boolean get(int i) {
+        if ((i + 1) < 1) throw new IndexOutOfBoundsException("i=" + i);
+        final int w = i >> SHIFT3;
+        final AtomicReferenceArray<AtomicLongArray> a2 = bits.get(w >> SHIFT1);
+        final AtomicLongArray a3;
+        return a2 != null
+                && (a3 = a2.get((w >> SHIFT2) & MASK2)) != null
+                && (a3.get(w & MASK3) & (1L << i)) != 0;
+    }
+
+    /**
+     * @param i the index to start checking from (inclusive)
+     * @return the index of the first set bit on or after {@code i}, or -1 if there is no such bit
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public int nextSetBit(int i) {
+        if (i < 0) throw new IndexOutOfBoundsException("i=" + i);
+        int w = i >> SHIFT3;
+        long mask = ~0L << i;
+        for (int w1 = w >> SHIFT1; w1 < MAX_LENGTH1; w1++) {
+            final AtomicReferenceArray<AtomicLongArray> a2 = bits.get(w1);
+            if (a2 != null) {
+                for (int w2 = (w >> SHIFT2) & MASK2; w2 < LENGTH2; w2++) {
+                    final AtomicLongArray a3 = a2.get(w2);
+                    if (a3 != null) {
+                        for (int w3 = w & MASK3; w3 < LENGTH3; w3++) {
+                            final long word = a3.get(w3) & mask;
+                            if (word != 0) {
+                                return (((w1 << SHIFT1) + (w2 << SHIFT2) + w3) << SHIFT3) + Long.numberOfTrailingZeros(word);
+                            }
+                            mask = ~0L;
+                        }
+                    }
+                    w &= ~MASK3;
+                    mask = ~0L;
+                }
+            }
+            w = 0;
+            mask = ~0L;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of set bits
+     */
+    public int cardinality() {
+        return cardinality.intValue();
+    }
+
+    /**
+     * Copies the current content into a new {@link SparseBitSet}. The copy reflects all updates completed before
+     * the call, updates running concurrently may or may not be included.
+     */
+    public SparseBitSet toSparseBitSet() {
+        final SparseBitSet result = new SparseBitSet(Integer.MAX_VALUE);
+        for (int w1 = 0; w1 < MAX_LENGTH1; w1++) {
+            final AtomicReferenceArray<AtomicLongArray> a2 = bits.get(w1);
+            if (a2 == null) continue;
+            for (int w2 = 0; w2 < LENGTH2; w2++) {
+                final AtomicLongArray a3 = a2.get(w2);
+                if (a3 == null) continue;
+                long[] block = null;
+                for (int w3 = 0; w3 < LENGTH3; w3++) {
+                    final long word = a3.get(w3);
+                    if (word == 0) continue;
+                    if (block == null) block = new long[LENGTH3];
+                    block[w3] = word;
+                }
+                if (block == null) continue;
+                if (result.bits[w1] == null) result.bits[w1] = new long[LENGTH2][];
+                result.bits[w1][w2] = SparseBitSet.compactBlock(block);
+            }
+        }
+        result.cache.hash = 0; //  Invalidate size, etc.
+        return result;
+    }
+
+    private AtomicReferenceArray<AtomicLongArray> area(int w1) {
+        AtomicReferenceArray<AtomicLongArray> a2 = bits.get(w1);
+        if (a2 == null) {
+            final AtomicReferenceArray<AtomicLongArray> created = new AtomicReferenceArray<>(LENGTH2);
+            a2 = bits.compareAndSet(w1, null, created) ? created : bits.get(w1);
+        }
+        return a2;
+    }
+
+    private static AtomicLongArray block(AtomicReferenceArray<AtomicLongArray> a2, int w2) {
+        AtomicLongArray a3 = a2.get(w2);
+        if (a3 == null) {
+            final AtomicLongArray created = new AtomicLongArray(LENGTH3);
+            a3 = a2.compareAndSet(w2, null, created) ? created : a2.get(w2);
+        }
+        return a3;
+    }
+}
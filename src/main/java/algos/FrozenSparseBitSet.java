@@ -0,0 +1,378 @@
+package algos;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Immutable snapshot of a {@link SparseBitSet}, created by {@link SparseBitSet#freeze()} or
+ * {@link SparseBitSet#snapshot()}. It's meant to be built once and then queried by many threads without
+ * synchronization and without cloning the set per reader.
+ * <p>
+ * A snapshot made by {@code freeze()} is compacted: empty blocks and areas are dropped, blocks holding few bits
+ * become array containers, and the level1 array is cut down to the last area holding bits. Its statistics, and the
+ * index used by {@link #rank(int)} and {@link #select(int)}, are computed up front, so no query goes through the
+ * scanner, the shared strategy objects or the spare blocks, and nothing of the snapshot is written after its
+ * construction. A snapshot made by {@code snapshot()} takes no time: it shares the arrays of its source, which copies
+ * them before changing them, and computes its statistics and index once, under a lock, when they're first needed.
+ * Every method which would change the set throws {@link UnsupportedOperationException}, and {@link #clone()} gives
+ * a modifiable copy.
+ * <p>
+ * As with any other object, the snapshot must be handed to the reading threads safely, e.g. through a final or
+ * volatile field or a concurrent collection.
+ */
+public final class FrozenSparseBitSet extends SparseBitSet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Whether the statistics and the rank index are built, a snapshot sharing the arrays of its source builds them
+     * when they're first needed
+     */
+    private transient volatile boolean ready;
+
+    FrozenSparseBitSet(SparseBitSet source) {
+        super(1, source.compactionCount);
+        final long[][][] a1 = source.bits;
+        final long[][][] copy = new long[a1.length][][];
+        int last = -1;
+        for (int w1 = 0; w1 < a1.length; w1++) {
+            final long[][] a2 = a1[w1];
+            if (a2 == null) continue;
+            long[][] copy2 = null;
+            for (int w2 = 0; w2 < LENGTH2; w2++) {
+                final long[] a3 = a2[w2] == null ? null : compactCopy(a2[w2]);
+                if (a3 == null) continue;
+                if (copy2 == null) copy2 = copy[w1] = new long[LENGTH2][];
+                copy2[w2] = a3;
+                last = w1;
+            }
+        }
+        // the highest level1 entry in use is at most MAX_LENGTH1 - 1, so the index can't overflow
+        resize(last < 0 ? 0 : last * UNIT + UNIT - 1);
+        System.arraycopy(copy, 0, bits, 0, Math.min(copy.length, bits.length));
+        cache.hash = 0; //  Invalidate size, etc.
+        rankUpdate();
+        ready = true;
+    }
+
+    /**
+     * Creates a snapshot using the given arrays of the source as they are; the source must copy any of them before
+     * writing it
+     */
+    FrozenSparseBitSet(SparseBitSet source, long[][][] bits) {
+        super(1, source.compactionCount);
+        this.bits = bits;
+        this.shared = bits; // so that its statistics drop no empty block or area of the source
+        bitsLength = source.bitsLength;
+        final Cache stats = source.cache;
+        cache.hash = stats.hash; //  The statistics of the source still hold, if they're up-to-date
+        cache.size = stats.size;
+        cache.cardinality = stats.cardinality;
+        cache.length = stats.length;
+        cache.count = stats.count;
+        cache.a2Count = stats.a2Count;
+        cache.a3Count = stats.a3Count;
+    }
+
+    /**
+     * Builds the statistics and the rank index, once
+     */
+    private void prepare() {
+        if (ready) return;
+        synchronized (this) {
+            if (!ready) {
+                rankUpdate();
+                ready = true;
+            }
+        }
+    }
+
+    @Override
+    public int cardinality() {
+        prepare();
+        return super.cardinality();
+    }
+
+    @Override
+    public int hashCode() {
+        prepare();
+        return super.hashCode();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        prepare();
+        return super.isEmpty();
+    }
+
+    @Override
+    public int length() {
+        prepare();
+        return super.length();
+    }
+
+    @Override
+    public int size() {
+        prepare();
+        return super.size();
+    }
+
+    @Override
+    public int rank(int i) {
+        prepare();
+        return super.rank(i);
+    }
+
+    @Override
+    public int select(int k) {
+        prepare();
+        return super.select(k);
+    }
+
+    @Override
+    public String statistics(String[] values) {
+        prepare();
+        return super.statistics(values);
+    }
+
+    /**
+     * @return this set, which is already frozen
+     */
+    @Override
+    public FrozenSparseBitSet freeze() {
+        return this;
+    }
+
+    /**
+     * @return this set, which can't change
+     */
+    @Override
+    public FrozenSparseBitSet snapshot() {
+        return this;
+    }
+
+    /**
+     * Returns a modifiable copy of this set; the copy is a plain {@link SparseBitSet}
+     */
+    @Override
+    public SparseBitSet clone() {
+        final SparseBitSet result = new SparseBitSet(bitsLength, compactionCount);
+        result.or(this);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof SparseBitSet)) return false;
+        final SparseBitSet b = (SparseBitSet) obj;
+        final int cardinality = cardinality();
+        return b.cardinality() == cardinality && andCardinality(b) == cardinality;
+    }
+
+    @Override
+    public boolean intersects(SparseBitSet b) {
+        return andCardinality(b) != 0;
+    }
+
+    @Override
+    public boolean intersects(int i, int j, SparseBitSet b) {
+        return get(i, j).intersects(b);
+    }
+
+    /**
+     * Makes the given level3 block as small as possible, it's copied so that the snapshot shares no array with the
+     * set it's taken from
+     *
+     * @return the copy, or null if the block holds no bits
+     */
+    private static long[] compactCopy(long[] a3) {
+        if (a3.length == LENGTH3) {
+            final long[] compacted = compactBlock(a3);
+            if (compacted != a3) return compacted;
+            return isEmptyBlock(a3) ? null : a3.clone();
+        }
+        final int size = containerSize(a3);
+        if (size == 0) return null;
+        int length = 1;
+        while (length << 2 < size) length <<= 1;
+        return Arrays.copyOf(a3, length);
+    }
+
+    private static UnsupportedOperationException immutable() {
+        return new UnsupportedOperationException("a frozen SparseBitSet can't be modified");
+    }
+
+    /**
+     * Returns a copy of the level arrays, which may be changed without changing this set or the set it was taken from
+     */
+    @Override
+    public long[][][] getBits() {
+        final long[][][] copy = bits.clone();
+        for (int w1 = 0; w1 < copy.length; w1++) {
+            final long[][] a2 = copy[w1];
+            if (a2 == null) continue;
+            final long[][] copy2 = copy[w1] = a2.clone();
+            for (int w2 = 0; w2 < copy2.length; w2++) {
+                if (copy2[w2] != null) copy2[w2] = copy2[w2].clone();
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    public void setBits(long[][][] bits) {
+        throw immutable();
+    }
+
+    @Override
+    public void and(int i, boolean value) {
+        throw immutable();
+    }
+
+    @Override
+    public void and(int i, int j, SparseBitSet b) {
+        throw immutable();
+    }
+
+    @Override
+    public void and(SparseBitSet b) {
+        throw immutable();
+    }
+
+    @Override
+    public void andNot(int i, boolean value) {
+        throw immutable();
+    }
+
+    @Override
+    public void andNot(int i, int j, SparseBitSet b) {
+        throw immutable();
+    }
+
+    @Override
+    public void andNot(SparseBitSet b) {
+        throw immutable();
+    }
+
+    @Override
+    public void clear(int i) {
+        throw immutable();
+    }
+
+    @Override
+    public void clear(int i, int j) {
+        throw immutable();
+    }
+
+    @Override
+    public void clear() {
+        throw immutable();
+    }
+
+    @Override
+    public void flip(int i) {
+        throw immutable();
+    }
+
+    @Override
+    public void flip(int i, int j) {
+        throw immutable();
+    }
+
+    @Override
+    public void or(int i, boolean value) {
+        throw immutable();
+    }
+
+    @Override
+    public void or(int i, int j, SparseBitSet b) {
+        throw immutable();
+    }
+
+    @Override
+    public void or(SparseBitSet b) {
+        throw immutable();
+    }
+
+    @Override
+    public void or(Collection<SparseBitSet> sets) {
+        throw immutable();
+    }
+
+    @Override
+    public void orParallel(SparseBitSet b, ForkJoinPool pool) {
+        throw immutable();
+    }
+
+    @Override
+    public void andParallel(SparseBitSet b, ForkJoinPool pool) {
+        throw immutable();
+    }
+
+    @Override
+    public void set(int i) {
+        throw immutable();
+    }
+
+    @Override
+    public void setAll(int[] indices, int from, int to) {
+        throw immutable();
+    }
+
+    @Override
+    public void set(int i, boolean value) {
+        throw immutable();
+    }
+
+    @Override
+    public void set(int i, int j) {
+        throw immutable();
+    }
+
+    @Override
+    public void set(int i, int j, boolean value) {
+        throw immutable();
+    }
+
+    @Override
+    public void xor(int i, boolean value) {
+        throw immutable();
+    }
+
+    @Override
+    public void xor(int i, int j, SparseBitSet b) {
+        throw immutable();
+    }
+
+    @Override
+    public void xor(SparseBitSet b) {
+        throw immutable();
+    }
+
+    @Override
+    public void toStringCompaction(int count) {
+        throw immutable();
+    }
+
+    @Override
+    public void trackCardinality(boolean track) {
+        throw immutable();
+    }
+
+    /**
+     * A snapshot drops no blocks, and those its statistics scan finds empty may still belong to its source
+     */
+    @Override
+    public void setBlockPool(BlockPool pool) {
+        throw immutable();
+    }
+
+    /**
+     * A snapshot is serialized as a plain {@link SparseBitSet} holding the same bits
+     */
+    private Object writeReplace() {
+        return clone();
+    }
+}
@@ -1,28 +1,171 @@
 package algos;
 
-import com.clearspring.analytics.hash.MurmurHash;
+import algos.utils.HashUtils;
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 public class IndexBitSetData implements Serializable {
 
-    private SparseBitSet bitSet = new SparseBitSet(Integer.MAX_VALUE);
+    /**
+     * Bounds of the bit space which may be set with {@link #IndexBitSetData(int)}, as powers of two
+     */
+    public static final int MIN_LOG2_BITS = 20;
+    public static final int MAX_LOG2_BITS = 28;
+
+    /**
+     * The number of bits the hashes are mapped to, {@code Integer.MAX_VALUE} unless configured
+     */
+    private final int bitSpace;
+
+    private final SparseBitSet bitSet;
+
+    public IndexBitSetData() {
+        this.bitSpace = Integer.MAX_VALUE;
+        this.bitSet = new SparseBitSet(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Maps the hashes to a bit space of {@code 2^log2Bits} bits, using their low bits. The smaller space takes less
+     * memory, and more values share a bit, which {@link #estimatedDistinct()} corrects with a known error, see
+     * {@link #estimatedError()}
+     *
+     * @param log2Bits from {@link #MIN_LOG2_BITS} to {@link #MAX_LOG2_BITS}
+     */
+    public IndexBitSetData(int log2Bits) {
+        if (log2Bits < MIN_LOG2_BITS || log2Bits > MAX_LOG2_BITS) {
+            throw new IllegalArgumentException("log2Bits must be from " + MIN_LOG2_BITS + " to " + MAX_LOG2_BITS + ", got " + log2Bits);
+        }
+        this.bitSpace = 1 << log2Bits;
+        this.bitSet = new SparseBitSet(bitSpace);
+    }
 
     public SparseBitSet getBitSet() {
         return this.bitSet;
     }
 
+    /**
+     * @return the number of bits the hashes are mapped to
+     */
+    public int getBitSpace() {
+        return bitSpace;
+    }
+
+    /**
+     * Read-only view of the indexed values as they are now, taken in constant time; later updates of this index
+     * aren't seen by it, see {@link SparseBitSet#snapshot()}
+     */
+    public FrozenSparseBitSet snapshot() {
+        return this.bitSet.snapshot();
+    }
+
     public IndexBitSetData setVal(String s) {
-        this.bitSet.set((MurmurHash.hash(s.getBytes()) & 0x7fffffff) % Integer.MAX_VALUE);
+        return setHashed(HashUtils.murmurHash(s));
+    }
+
+    /**
+     * Same as {@link #setVal(String)} for a value whose 32-bit murmur hash was already computed
+     */
+    public IndexBitSetData setHashed(int hash) {
+        this.bitSet.set(index(hash));
+        return this;
+    }
+
+    /**
+     * Batch version of {@link #setVal(String)}. All values are hashed first, then the bit indices are sorted so
+     * that the bit set is updated block by block, see {@link SparseBitSet#setAll(int[], int, int)}
+     */
+    public IndexBitSetData setAll(CharSequence... values) {
+        final int[] indices = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            indices[i] = index(HashUtils.murmurHash(values[i]));
+        }
+        return setAllIndices(indices);
+    }
+
+    /**
+     * Batch version of {@link #setHashed(int)}, the given array isn't modified
+     */
+    public IndexBitSetData setAllHashed(int... hashes) {
+        final int[] indices = new int[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            indices[i] = index(hashes[i]);
+        }
+        return setAllIndices(indices);
+    }
+
+    private IndexBitSetData setAllIndices(int[] indices) {
+        Arrays.sort(indices);
+        this.bitSet.setAll(indices, 0, indices.length);
         return this;
     }
 
+    /**
+     * Maps a 32-bit murmur hash of a value to the index of its bit in the default bit space
+     */
+    public static int toIndex(int hash) {
+        return (hash & 0x7fffffff) % Integer.MAX_VALUE;
+    }
+
+    private int index(int hash) {
+        return bitSpace == Integer.MAX_VALUE ? toIndex(hash) : hash & (bitSpace - 1);
+    }
+
+    /**
+     * Number of distinct values estimated by linear counting: with k bits set out of m, -m ln(1 - k/m). Unlike the
+     * number of set bits, it accounts for the values which share a bit. Once all the bits are set, the estimate is
+     * m ln m, the one for a single bit left unset.
+     */
+    public long estimatedDistinct() {
+        final double m = bitSpace;
+        final int k = bitSet.cardinality();
+        if (k >= bitSpace) return Math.round(m * Math.log(m));
+        return Math.round(-m * Math.log1p(-k / m));
+    }
+
+    /**
+     * Relative standard error of {@link #estimatedDistinct()} at the current fill, as given by Whang et al. for linear
+     * counting: sqrt(m (e^t - t - 1)) / n, where n is the estimate and t = n / m
+     */
+    public double estimatedError() {
+        final double n = estimatedDistinct();
+        if (n == 0) return 0;
+        final double m = bitSpace;
+        final double t = n / m;
+        return Math.sqrt(m * (Math.expm1(t) - t)) / n;
+    }
+
     public IndexBitSetData merge(IndexBitSetData index2) throws CardinalityMergeException {
+        checkBitSpace(index2);
         this.bitSet.or(index2.getBitSet());
         return this;
     }
 
+    /**
+     * Merges all the given indices into this one in a single pass over their bit sets, instead of walking this bit
+     * set once per merged index. As with {@link #merge(IndexBitSetData)}, the bit set of this index is updated in
+     * place, see {@link SparseBitSet#or(Collection)}
+     */
+    public IndexBitSetData mergeAll(Collection<IndexBitSetData> indices) throws CardinalityMergeException {
+        final List<SparseBitSet> bitSets = new ArrayList<>(indices.size());
+        for (IndexBitSetData index : indices) {
+            checkBitSpace(index);
+            bitSets.add(index.getBitSet());
+        }
+        this.bitSet.or(bitSets);
+        return this;
+    }
+
+    private void checkBitSpace(IndexBitSetData index) throws CardinalityMergeException {
+        if (index.bitSpace != bitSpace) {
+            throw new IndexBitSetDataMergeException("Cannot merge indices of " + bitSpace + " and " + index.bitSpace + " bits");
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -30,12 +173,23 @@ public class IndexBitSetData implements Serializable {
 
         IndexBitSetData indexData = (IndexBitSetData) o;
 
+        if (bitSpace != indexData.bitSpace) return false;
         return getBitSet() != null ? getBitSet().equals(indexData.getBitSet()) : indexData.getBitSet() == null;
     }
 
     @Override
     public int hashCode() {
         int result = 31 * (getBitSet() != null ? getBitSet().hashCode() : 0);
+        result = 31 * result + bitSpace;
         return result;
     }
+
+    protected static class IndexBitSetDataMergeException extends CardinalityMergeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public IndexBitSetDataMergeException(String message) {
+            super(message);
+        }
+    }
 }
@@ -1,8 +1,9 @@
 package algos;
 
-import com.clearspring.analytics.hash.MurmurHash;
+import algos.hll.DenseHyperLogLog;
+import algos.hll.SparseHyperLogLog;
+import algos.utils.HashUtils;
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
-import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
 
 import java.io.Serializable;
 
@@ -11,20 +12,70 @@ import java.io.Serializable;
  */
 public class IndexData implements Serializable {
 
-    private HyperLogLogPlus hyperLogLog = new HyperLogLogPlus(16);
+    private final SparseHyperLogLog hyperLogLog;
 
-    public HyperLogLogPlus getHyperLogLog() {
+    public IndexData() {
+        this(DenseHyperLogLog.DEFAULT_PRECISION, SparseHyperLogLog.DEFAULT_SPARSE_PRECISION);
+    }
+
+    /**
+     * The sketch starts in its sparse representation, which takes a few bytes per value, and becomes dense with
+     * {@code 2^precision} one-byte registers once that's smaller, see {@link SparseHyperLogLog}
+     *
+     * @param precision       the precision of the dense sketch, from {@link DenseHyperLogLog#MIN_PRECISION} to
+     *                        {@link DenseHyperLogLog#MAX_PRECISION}
+     * @param sparsePrecision the precision of the sparse sketch, from {@code precision} to
+     *                        {@link SparseHyperLogLog#MAX_SPARSE_PRECISION}
+     */
+    public IndexData(int precision, int sparsePrecision) {
+        this.hyperLogLog = new SparseHyperLogLog(precision, sparsePrecision);
+    }
+
+    public SparseHyperLogLog getHyperLogLog() {
         return hyperLogLog;
     }
 
+    /**
+     * @return the estimated number of distinct values indexed
+     */
+    public long estimatedDistinct() {
+        return hyperLogLog.cardinality();
+    }
+
     public IndexData setVal(String s) {
-        final byte[] bytes = s.getBytes();
-        this.hyperLogLog.offerHashed(MurmurHash.hash64(bytes, bytes.length));
+        return setHashed(HashUtils.murmurHash64(s));
+    }
+
+    /**
+     * Same as {@link #setVal(String)} for a value whose 64-bit murmur hash was already computed
+     */
+    public IndexData setHashed(long hash) {
+        this.hyperLogLog.offerHashed(hash);
+        return this;
+    }
+
+    /**
+     * Batch version of {@link #setVal(String)}
+     */
+    public IndexData setAll(CharSequence... values) {
+        for (CharSequence value : values) {
+            this.hyperLogLog.offerHashed(HashUtils.murmurHash64(value));
+        }
+        return this;
+    }
+
+    /**
+     * Batch version of {@link #setHashed(long)}
+     */
+    public IndexData setAllHashed(long... hashes) {
+        for (long hash : hashes) {
+            this.hyperLogLog.offerHashed(hash);
+        }
         return this;
     }
 
     public IndexData merge(IndexData index2) throws CardinalityMergeException {
-        this.hyperLogLog = (HyperLogLogPlus) this.hyperLogLog.merge(index2.getHyperLogLog());
+        this.hyperLogLog.addAll(index2.getHyperLogLog());
         return this;
     }
 
@@ -0,0 +1,482 @@
+package algos;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import static algos.SparseBitSet.LENGTH3;
+import static algos.SparseBitSet.MASK_BLOCK;
+import static algos.SparseBitSet.SHIFT3;
+import static algos.SparseBitSet.containerAdd;
+import static algos.SparseBitSet.containerIndexOf;
+import static algos.SparseBitSet.containerOf;
+import static algos.SparseBitSet.containerRemove;
+import static algos.SparseBitSet.containerSize;
+import static algos.SparseBitSet.compactBlock;
+import static algos.SparseBitSet.inflate;
+import static algos.SparseBitSet.isEmptyBlock;
+import static algos.SparseBitSet.nextSetInBlock;
+import static algos.SparseBitSet.position;
+
+/**
+ * A set of bits indexed by non-negative {@code long} values, e.g. 64-bit hashes masked to 40-48 bits, so that distinct
+ * values don't collide as they do once folded into the 31-bit index space of a {@link SparseBitSet}.
+ * <p>
+ * The bits are kept in the level3 blocks of {@link SparseBitSet}, 2048 bits each, bitmaps or array containers, but
+ * instead of the level1 and level2 arrays, whose size follows the highest index, the blocks are found through an open
+ * addressing hash table keyed by the block number (the index shifted right by 11). So a set holding a few bits spread
+ * over a 48-bit space takes a few dozen bytes per bit, and one holding billions of bits in a 40-bit space is as
+ * compact as a {@link SparseBitSet}. The whole-set operations, {@link #or(LongSparseBitSet)},
+ * {@link #and(LongSparseBitSet)}, {@link #andCardinality(LongSparseBitSet)} and so on, work block by block with the
+ * block helpers of {@link SparseBitSet}. {@link #nextSetBit(long)} and {@link #length()} need the block numbers in
+ * order, they're sorted when first needed after new blocks were added.
+ * <p>
+ * As {@link SparseBitSet}, it's not thread-safe.
+ */
+public class LongSparseBitSet implements Cloneable, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of low bits of an index addressing a bit within its block
+     */
+    static final int BLOCK_SHIFT = 11;
+
+    private static final long NO_KEY = -1L;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[][] blocks;
+    private int size;
+
+    /**
+     * The exact count of the set bits, kept by the single bit operations, or negative if it must be recomputed
+     */
+    private long cardinality;
+
+    /**
+     * The numbers of the blocks in ascending order, or null if blocks were added since they were sorted
+     */
+    private transient long[] sortedKeys;
+
+    public LongSparseBitSet() {
+        clear();
+    }
+
+    /**
+     * Sets the bit at the specified index.
+     *
+     * @param i a bit index
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public void set(long i) {
+        if (i < 0) throw new IndexOutOfBoundsException("i=" + i);
+        final int slot = slotForUpdate(i >>> BLOCK_SHIFT);
+        final long[] a3 = blocks[slot];
+        final int p = (int) i & MASK_BLOCK;
+        if (a3 == null) {
+            blocks[slot] = containerOf(p);
+        } else if (a3.length != LENGTH3) {
+            if (containerIndexOf(a3, p) >= 0) return;
+            blocks[slot] = containerAdd(a3, p);
+        } else {
+            final long word = a3[p >> SHIFT3];
+            if ((word & (1L << p)) != 0) return;
+            a3[p >> SHIFT3] = word | (1L << p);
+        }
+        if (cardinality >= 0) cardinality++;
+    }
+
+    /**
+     * Sets the bits at the indices held by the {@code from} (inclusive) to {@code to} (exclusive) part of the given
+     * array.
+     *
+     * @throws IndexOutOfBoundsException if any of the given indices is negative (the bits before it are set)
+     */
+    public void setAll(long[] indices, int from, int to) {
+        for (int n = from; n < to; n++) {
+            set(indices[n]);
+        }
+    }
+
+    /**
+     * Sets the bit at the specified index to false. The block is kept even if it becomes empty, as
+     * {@link SparseBitSet#clear(int)} does.
+     *
+     * @param i a bit index
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public void clear(long i) {
+        if (i < 0) throw new IndexOutOfBoundsException("i=" + i);
+        final int slot = slot(i >>> BLOCK_SHIFT);
+        if (slot < 0) return;
+        final long[] a3 = blocks[slot];
+        final int p = (int) i & MASK_BLOCK;
+        if (a3.length != LENGTH3) {
+            if (!containerRemove(a3, p)) return;
+        } else {
+            final long word = a3[p >> SHIFT3];
+            if ((word & (1L << p)) == 0) return;
+            a3[p >> SHIFT3] = word & ~(1L << p);
+        }
+        if (cardinality >= 0) cardinality--;
+    }
+
+    /**
+     * Sets the bit at the specified index to the complement of its current value.
+     *
+     * @param i a bit index
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public void flip(long i) {
+        if (get(i)) clear(i);
+        else set(i);
+    }
+
+    /**
+     * @param i a bit index
+     * @return the value of the bit with the specified index
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public boolean get(long i) {
+        if (i < 0) throw new IndexOutOfBoundsException("i=" + i);
+        final int slot = slot(i >>> BLOCK_SHIFT);
+        if (slot < 0) return false;
+        final long[] a3 = blocks[slot];
+        final int p = (int) i & MASK_BLOCK;
+        return a3.length == LENGTH3 ? (a3[p >> SHIFT3] & (1L << p)) != 0 : containerIndexOf(a3, p) >= 0;
+    }
+
+    /**
+     * Sets all the bits to false, and drops all the blocks.
+     */
+    public void clear() {
+        keys = new long[MIN_CAPACITY];
+        Arrays.fill(keys, NO_KEY);
+        blocks = new long[MIN_CAPACITY][];
+        size = 0;
+        cardinality = 0;
+        sortedKeys = null;
+    }
+
+    /**
+     * @return the number of bits set to true
+     */
+    public long cardinality() {
+        if (cardinality < 0) {
+            long count = 0;
+            for (long[] a3 : blocks) {
+                if (a3 != null) count += bitCount(a3);
+            }
+            cardinality = count;
+        }
+        return cardinality;
+    }
+
+    /**
+     * @return true if no bit is set
+     */
+    public boolean isEmpty() {
+        return cardinality() == 0;
+    }
+
+    /**
+     * @return the index of the highest set bit plus one, or 0 if no bit is set
+     */
+    public long length() {
+        final long[] sorted = sortedKeys();
+        for (int n = sorted.length - 1; n >= 0; n--) {
+            final long[] a3 = blocks[slot(sorted[n])];
+            if (a3.length != LENGTH3) {
+                final int count = containerSize(a3);
+                if (count != 0) return (sorted[n] << BLOCK_SHIFT) + position(a3, count - 1) + 1;
+                continue;
+            }
+            for (int w3 = LENGTH3 - 1; w3 >= 0; w3--) {
+                if (a3[w3] != 0) {
+                    return (sorted[n] << BLOCK_SHIFT) + (w3 << SHIFT3) + 64 - Long.numberOfLeadingZeros(a3[w3]);
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the index of the first bit that is set to true that occurs on or after the specified starting index.
+     *
+     * @param i the index to start checking from (inclusive)
+     * @return the index of the next set bit, or -1 if there is no such bit
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public long nextSetBit(long i) {
+        if (i < 0) throw new IndexOutOfBoundsException("i=" + i);
+        final long[] sorted = sortedKeys();
+        final long key = i >>> BLOCK_SHIFT;
+        int n = Arrays.binarySearch(sorted, key);
+        int p = (int) i & MASK_BLOCK;
+        if (n < 0) {
+            n = -n - 1;
+            p = 0;
+        }
+        for (; n < sorted.length; n++, p = 0) {
+            final int next = nextSetInBlock(blocks[slot(sorted[n])], p);
+            if (next >= 0) return (sorted[n] << BLOCK_SHIFT) + next;
+        }
+        return -1;
+    }
+
+    /**
+     * Performs a logical <b>OR</b> of this bit set with the argument.
+     */
+    public void or(LongSparseBitSet b) {
+        if (b == this) return;
+        for (int s = 0; s < b.keys.length; s++) {
+            final long[] b3 = b.blocks[s];
+            if (b3 == null || isEmptyBlock(b3)) continue;
+            final int slot = slotForUpdate(b.keys[s]);
+            final long[] a3 = blocks[slot];
+            if (a3 == null) {
+                blocks[slot] = b3.clone();
+                continue;
+            }
+            final long[] result = a3.length == LENGTH3 ? a3 : inflate(a3, new long[LENGTH3]);
+            final long[] words = b3.length == LENGTH3 ? b3 : inflate(b3, new long[LENGTH3]);
+            for (int w3 = 0; w3 < LENGTH3; w3++) {
+                result[w3] |= words[w3];
+            }
+            blocks[slot] = compactBlock(result);
+        }
+        cardinality = -1;
+    }
+
+    /**
+     * Performs a logical <b>AND</b> of this bit set with the argument, the blocks left empty are dropped.
+     */
+    public void and(LongSparseBitSet b) {
+        if (b == this) return;
+        combine(b, false);
+    }
+
+    /**
+     * Clears all of the bits in this bit set whose corresponding bit is set in the argument, the blocks left empty
+     * are dropped.
+     */
+    public void andNot(LongSparseBitSet b) {
+        if (b == this) {
+            clear();
+            return;
+        }
+        combine(b, true);
+    }
+
+    /**
+     * Performs a logical <b>XOR</b> of this bit set with the argument.
+     */
+    public void xor(LongSparseBitSet b) {
+        if (b == this) {
+            clear();
+            return;
+        }
+        for (int s = 0; s < b.keys.length; s++) {
+            final long[] b3 = b.blocks[s];
+            if (b3 == null) continue;
+            final int slot = slotForUpdate(b.keys[s]);
+            final long[] a3 = blocks[slot];
+            if (a3 == null) {
+                blocks[slot] = b3.clone();
+                continue;
+            }
+            final long[] result = a3.length == LENGTH3 ? a3 : inflate(a3, new long[LENGTH3]);
+            final long[] words = b3.length == LENGTH3 ? b3 : inflate(b3, new long[LENGTH3]);
+            for (int w3 = 0; w3 < LENGTH3; w3++) {
+                result[w3] ^= words[w3];
+            }
+            blocks[slot] = compactBlock(result);
+        }
+        cardinality = -1;
+    }
+
+    /**
+     * Counts the bits set in both this bit set and the argument, without building their intersection
+     */
+    public long andCardinality(LongSparseBitSet b) {
+        final LongSparseBitSet small = size <= b.size ? this : b;
+        final LongSparseBitSet large = small == this ? b : this;
+        long count = 0;
+        for (int s = 0; s < small.keys.length; s++) {
+            final long[] a3 = small.blocks[s];
+            if (a3 == null) continue;
+            final int slot = large.slot(small.keys[s]);
+            if (slot >= 0) count += SparseBitSet.andCardinality(a3, large.blocks[slot]);
+        }
+        return count;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LongSparseBitSet)) return false;
+        final LongSparseBitSet b = (LongSparseBitSet) o;
+        final long cardinality = cardinality();
+        return b.cardinality() == cardinality && andCardinality(b) == cardinality;
+    }
+
+    /**
+     * The hash code depends on the set bits only, not on the form of the blocks nor on their order in the table
+     */
+    @Override
+    public int hashCode() {
+        long h = 0;
+        final long[] words = new long[LENGTH3];
+        for (int s = 0; s < keys.length; s++) {
+            final long[] a3 = blocks[s];
+            if (a3 == null) continue;
+            final long[] block = a3.length == LENGTH3 ? a3 : inflate(a3, words);
+            for (int w3 = 0; w3 < LENGTH3; w3++) {
+                if (block[w3] != 0) h += mix((keys[s] << 5) + w3) * block[w3];
+            }
+        }
+        return (int) (h ^ h >>> 32);
+    }
+
+    /**
+     * @return a deep copy of this bit set
+     */
+    @Override
+    public LongSparseBitSet clone() {
+        try {
+            final LongSparseBitSet result = (LongSparseBitSet) super.clone();
+            result.keys = keys.clone();
+            result.blocks = new long[blocks.length][];
+            for (int s = 0; s < blocks.length; s++) {
+                if (blocks[s] != null) result.blocks[s] = blocks[s].clone();
+            }
+            return result;
+        } catch (CloneNotSupportedException ex) {
+            throw new InternalError(ex.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LongSparseBitSet{cardinality=" + cardinality() + ", blocks=" + size + "}";
+    }
+
+    /**
+     * Rebuilds the table with the non-empty blocks resulting from an AND, or an AND NOT, of each block of this set
+     * with the matching block of the argument
+     */
+    private void combine(LongSparseBitSet b, boolean not) {
+        final long[] oldKeys = keys;
+        final long[][] oldBlocks = blocks;
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 < size * 4) capacity <<= 1;
+        keys = new long[capacity];
+        Arrays.fill(keys, NO_KEY);
+        blocks = new long[capacity][];
+        size = 0;
+        sortedKeys = null;
+        final long[] mask = new long[LENGTH3];
+        for (int s = 0; s < oldKeys.length; s++) {
+            final long[] a3 = oldBlocks[s];
+            if (a3 == null) continue;
+            final int slot = b.slot(oldKeys[s]);
+            long[] result;
+            if (slot < 0) {
+                if (!not) continue;
+                result = a3;
+            } else {
+                result = a3.length == LENGTH3 ? a3 : inflate(a3, new long[LENGTH3]);
+                final long[] b3 = b.blocks[slot];
+                final long[] words = b3.length == LENGTH3 ? b3 : inflate(b3, mask);
+                for (int w3 = 0; w3 < LENGTH3; w3++) {
+                    result[w3] &= not ? ~words[w3] : words[w3];
+                }
+                result = compactBlock(result);
+            }
+            if (!isEmptyBlock(result)) blocks[slotForUpdate(oldKeys[s])] = result;
+        }
+        cardinality = -1;
+    }
+
+    /**
+     * @return the slot of the block with the given number, or -1 if there is none
+     */
+    private int slot(long key) {
+        final int mask = keys.length - 1;
+        for (int s = (int) mix(key) & mask; ; s = (s + 1) & mask) {
+            final long k = keys[s];
+            if (k == key) return s;
+            if (k == NO_KEY) return -1;
+        }
+    }
+
+    /**
+     * @return the slot of the block with the given number, the key is added if missing (the block is left null)
+     */
+    private int slotForUpdate(long key) {
+        final int mask = keys.length - 1;
+        int s = (int) mix(key) & mask;
+        for (long k; (k = keys[s]) != NO_KEY; s = (s + 1) & mask) {
+            if (k == key) return s;
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            grow();
+            return slotForUpdate(key);
+        }
+        keys[s] = key;
+        size++;
+        sortedKeys = null;
+        return s;
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final long[][] oldBlocks = blocks;
+        keys = new long[oldKeys.length << 1];
+        Arrays.fill(keys, NO_KEY);
+        blocks = new long[keys.length][];
+        final int mask = keys.length - 1;
+        for (int s = 0; s < oldKeys.length; s++) {
+            if (oldKeys[s] == NO_KEY) continue;
+            int t = (int) mix(oldKeys[s]) & mask;
+            while (keys[t] != NO_KEY) t = (t + 1) & mask;
+            keys[t] = oldKeys[s];
+            blocks[t] = oldBlocks[s];
+        }
+    }
+
+    private long[] sortedKeys() {
+        long[] sorted = sortedKeys;
+        if (sorted == null) {
+            sorted = new long[size];
+            int n = 0;
+            for (long key : keys) {
+                if (key != NO_KEY) sorted[n++] = key;
+            }
+            Arrays.sort(sorted);
+            sortedKeys = sorted;
+        }
+        return sorted;
+    }
+
+    private static long bitCount(long[] a3) {
+        if (a3.length != LENGTH3) return containerSize(a3);
+        long count = 0;
+        for (long word : a3) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * The finalizer of the 64-bit murmur hash, the block numbers of nearby indices are consecutive
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        return key ^ key >>> 33;
+    }
+}
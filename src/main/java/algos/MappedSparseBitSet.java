@@ -0,0 +1,282 @@
+package algos;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static algos.SparseBitSet.LENGTH2;
+import static algos.SparseBitSet.LENGTH3;
+import static algos.SparseBitSet.LEVEL2;
+import static algos.SparseBitSet.MASK2;
+import static algos.SparseBitSet.MASK3;
+import static algos.SparseBitSet.SHIFT2;
+import static algos.SparseBitSet.SHIFT3;
+
+/**
+ * Read-only view of a {@link SparseBitSet} persisted by {@link #write(SparseBitSet, Path)}. The file is memory
+ * mapped by {@link #open(Path)} and queried in place, so opening it costs the same for any size of the set and
+ * pages are only read from disk when they are touched.
+ * <p>
+ * File layout, all values are big-endian:
+ * <pre>
+ *   int     magic ("SBS1")
+ *   int     format version
+ *   int     cardinality
+ *   int     length, i.e. the highest set bit plus one
+ *   int     blockCount
+ *   int[]   blockCount block indices ({@code bitIndex >> 11}) in ascending order, only non-empty blocks are written
+ *   ...     zero padding up to a multiple of 8 bytes
+ *   long[]  blockCount * 32 words, the words of the n-th block follow the words of the (n-1)-th one
+ * </pre>
+ */
+public class MappedSparseBitSet {
+
+    static final int MAGIC = 0x53425331;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 5 * Integer.BYTES;
+
+    /**
+     * Number of bits covered by a level3 block is {@code 1 << BLOCK_SHIFT}
+     */
+    private static final int BLOCK_SHIFT = SHIFT3 + SHIFT2;
+
+    private final int cardinality;
+
+    private final int length;
+
+    private final int blockCount;
+
+    private final IntBuffer blocks;
+
+    private final LongBuffer words;
+
+    private MappedSparseBitSet(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a SparseBitSet file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported SparseBitSet file version " + buffer.getInt(4));
+        }
+        cardinality = buffer.getInt(8);
+        length = buffer.getInt(12);
+        blockCount = buffer.getInt(16);
+        final long payloadOffset = payloadOffset(blockCount);
+        if (blockCount < 0 || payloadOffset + (long) blockCount * LENGTH3 * Long.BYTES != buffer.capacity()) {
+            throw new IOException("Truncated or corrupted SparseBitSet file");
+        }
+        // Buffer casts keep the class runnable on java 8 when it's built by newer JDKs
+        ((Buffer) buffer).position(HEADER_SIZE);
+        blocks = buffer.slice().asIntBuffer();
+        ((Buffer) buffer).position((int) payloadOffset);
+        words = buffer.slice().asLongBuffer();
+    }
+
+    /**
+     * Writes the given bit set to the file in the format described in the class doc, replacing the file if it exists
+     */
+    public static void write(SparseBitSet bitSet, Path file) throws IOException {
+        final long[][][] bits = bitSet.bits;
+        int blockCount = 0;
+        for (long[][] a2 : bits) {
+            if (a2 == null) continue;
+            for (long[] a3 : a2) {
+                if (!isEmpty(a3)) blockCount++;
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(bitSet.cardinality());
+            out.writeInt(bitSet.length());
+            out.writeInt(blockCount);
+            for (int w1 = 0; w1 < bits.length; w1++) {
+                if (bits[w1] == null) continue;
+                for (int w2 = 0; w2 < LENGTH2; w2++) {
+                    if (!isEmpty(bits[w1][w2])) out.writeInt((w1 << LEVEL2) + w2);
+                }
+            }
+            for (long n = HEADER_SIZE + (long) blockCount * Integer.BYTES; n < payloadOffset(blockCount); n++) {
+                out.writeByte(0);
+            }
+            final long[] scratch = new long[LENGTH3];
+            for (long[][] a2 : bits) {
+                if (a2 == null) continue;
+                for (long[] a3 : a2) {
+                    if (isEmpty(a3)) continue;
+                    for (long word : a3.length == LENGTH3 ? a3 : SparseBitSet.inflate(a3, scratch)) out.writeLong(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps the file written by {@link #write(SparseBitSet, Path)}. Nothing but the header is read, the mapping stays
+     * valid after the method returns and is released when the returned object is garbage collected
+     */
+    public static MappedSparseBitSet open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new MappedSparseBitSet(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @param i the bit index
+     * @return the value of the bit with the specified index
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public boolean get(int i) {
+        if (i < 0) throw new IndexOutOfBoundsException("i=" + i);
+        final int b = findBlock(i >> BLOCK_SHIFT);
+        return b >= 0 && (words.get((b << SHIFT2) + ((i >> SHIFT3) & MASK3)) & (1L << i)) != 0;
+    }
+
+    /**
+     * @param i the index to start checking from (inclusive)
+     * @return the index of the first set bit on or after {@code i}, or -1 if there is no such bit
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public int nextSetBit(int i) {
+        if (i < 0) throw new IndexOutOfBoundsException("i=" + i);
+        int b = findBlock(i >> BLOCK_SHIFT);
+        if (b >= 0) {
+            long mask = ~0L << i;
+            for (int w3 = (i >> SHIFT3) & MASK3; w3 < LENGTH3; w3++) {
+                final long word = words.get((b << SHIFT2) + w3) & mask;
+                if (word != 0) return (((blocks.get(b) << SHIFT2) + w3) << SHIFT3) + Long.numberOfTrailingZeros(word);
+                mask = ~0L;
+            }
+            b++;
+        } else {
+            b = -b - 1;
+        }
+        if (b == blockCount) return -1;
+        // the following blocks are never empty
+        for (int w3 = 0; ; w3++) {
+            final long word = words.get((b << SHIFT2) + w3);
+            if (word != 0) return (((blocks.get(b) << SHIFT2) + w3) << SHIFT3) + Long.numberOfTrailingZeros(word);
+        }
+    }
+
+    /**
+     * @return the number of set bits, stored in the header
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return the index of the highest set bit plus one, stored in the header
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Performs a logical <b>AND</b> of the given heap bit set with this one, only the heap bit set is modified
+     */
+    public void andInto(SparseBitSet target) {
+        target.unshareAll();
+        final long[][][] bits = target.bits;
+        int b = 0;
+        for (int w1 = 0; w1 < bits.length; w1++) {
+            final long[][] a2 = bits[w1];
+            if (a2 == null) continue;
+            boolean emptyArea = true;
+            for (int w2 = 0; w2 < LENGTH2; w2++) {
+                long[] a3 = a2[w2];
+                if (a3 == null) continue;
+                final int block = (w1 << LEVEL2) + w2;
+                while (b < blockCount && blocks.get(b) < block) b++;
+                if (b < blockCount && blocks.get(b) == block) {
+                    if (a3.length != LENGTH3) a3 = SparseBitSet.inflate(a3, new long[LENGTH3]);
+                    final int offset = b << SHIFT2;
+                    boolean emptyBlock = true;
+                    for (int w3 = 0; w3 < LENGTH3; w3++) {
+                        emptyBlock &= (a3[w3] &= words.get(offset + w3)) == 0;
+                    }
+                    if (!emptyBlock) {
+                        a2[w2] = SparseBitSet.compactBlock(a3);
+                        emptyArea = false;
+                        continue;
+                    }
+                }
+                a2[w2] = null;
+            }
+            if (emptyArea) bits[w1] = null;
+        }
+        invalidate(target);
+    }
+
+    /**
+     * Performs a logical <b>OR</b> of the given heap bit set with this one, only the heap bit set is modified
+     */
+    public void orInto(SparseBitSet target) {
+        target.unshareAll();
+        if (length > target.bitsLength) target.resize(length - 1);
+        final long[][][] bits = target.bits;
+        for (int b = 0; b < blockCount; b++) {
+            final int block = blocks.get(b);
+            final int w1 = block >> LEVEL2;
+            final int w2 = block & MASK2;
+            long[][] a2 = bits[w1];
+            if (a2 == null) a2 = bits[w1] = new long[LENGTH2][];
+            long[] a3 = a2[w2];
+            if (a3 == null) a3 = new long[LENGTH3];
+            else if (a3.length != LENGTH3) a3 = SparseBitSet.inflate(a3, new long[LENGTH3]);
+            final int offset = b << SHIFT2;
+            for (int w3 = 0; w3 < LENGTH3; w3++) {
+                a3[w3] |= words.get(offset + w3);
+            }
+            a2[w2] = SparseBitSet.compactBlock(a3);
+        }
+        invalidate(target);
+    }
+
+    /**
+     * @return a heap copy of this bit set
+     */
+    public SparseBitSet toSparseBitSet() {
+        final SparseBitSet result = new SparseBitSet(Math.max(length, 1));
+        orInto(result);
+        return result;
+    }
+
+    /**
+     * @return position of the given block in the directory or {@code -(insertion point) - 1} if it's missing
+     */
+    private int findBlock(int block) {
+        int low = 0;
+        int high = blockCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midBlock = blocks.get(mid);
+            if (midBlock < block) low = mid + 1;
+            else if (midBlock > block) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    private static void invalidate(SparseBitSet bitSet) {
+        bitSet.cache.hash = 0; //  Invalidate size, etc.
+        bitSet.cache.liveCardinality = -1;
+    }
+
+    private static long payloadOffset(int blockCount) {
+        return (HEADER_SIZE + (long) blockCount * Integer.BYTES + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    private static boolean isEmpty(long[] a3) {
+        return a3 == null || SparseBitSet.isEmptyBlock(a3);
+    }
+}
@@ -0,0 +1,414 @@
+package algos;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import static algos.SparseBitSet.LENGTH2;
+import static algos.SparseBitSet.LENGTH3;
+import static algos.SparseBitSet.LEVEL3;
+import static algos.SparseBitSet.MASK2;
+import static algos.SparseBitSet.MASK3;
+import static algos.SparseBitSet.MAX_LENGTH1;
+import static algos.SparseBitSet.SHIFT1;
+import static algos.SparseBitSet.SHIFT2;
+import static algos.SparseBitSet.SHIFT3;
+
+/**
+ * A set of bits with the same three level layout as {@link SparseBitSet}, whose level3 blocks live in direct memory
+ * instead of being separate {@code long[]} objects on the heap. Blocks are carved out of slabs of
+ * {@link #SLAB_BLOCKS} blocks each, so even a set holding millions of blocks is only a handful of heap objects for
+ * the garbage collector to mark: the slabs plus one small {@code int[]} directory per level2 area.
+ * <p>
+ * Blocks which become empty are put on a free list and reused by later allocations; the slabs themselves are only
+ * freed by {@link #close()}, which gives their direct memory back right away. Direct memory isn't counted by the
+ * heap, so a set dropped without being closed keeps its slabs until a garbage collection happens to reclaim them,
+ * which may be long after the direct memory limit was hit. Sets must therefore be closed once they're no longer used,
+ * e.g. with try-with-resources.
+ * <p>
+ * The set isn't thread safe.
+ */
+public class OffHeapSparseBitSet implements AutoCloseable {
+
+    /**
+     * Number of blocks held by one slab, i.e. a slab takes {@code SLAB_BLOCKS * LENGTH3 * 8} bytes (4 MB)
+     */
+    static final int SLAB_BLOCKS = 1 << 14;
+
+    private static final int SLAB_SHIFT = 14;
+
+    private static final int SLAB_MASK = SLAB_BLOCKS - 1;
+
+    /**
+     * Frees the memory of a direct buffer, or does nothing if the JVM offers no way to do it
+     */
+    private static final Consumer<ByteBuffer> FREE = freeFunction();
+
+    /**
+     * Level1 array of level2 areas holding {@code slot + 1} of each level3 block, 0 stands for a missing block
+     */
+    private final int[][] directory = new int[MAX_LENGTH1][];
+
+    private LongBuffer[] slabs = new LongBuffer[0];
+
+    /**
+     * The buffers allocated for the slabs, the {@code LongBuffer} views can't be freed themselves
+     */
+    private ByteBuffer[] memory = new ByteBuffer[0];
+
+    private boolean closed;
+
+    /**
+     * Number of slots handed out so far, including the freed ones
+     */
+    private int slotCount;
+
+    private int[] freeSlots = new int[16];
+
+    private int freeCount;
+
+    private int cardinality;
+
+    public OffHeapSparseBitSet() {
+    }
+
+    /**
+     * Creates an off-heap copy of the given bit set
+     */
+    public OffHeapSparseBitSet(SparseBitSet bitSet) {
+        or(bitSet);
+    }
+
+    /**
+     * Sets the bit at the specified index.
+     *
+     * @param i a bit index
+     * @throws IndexOutOfBoundsException if the specified index is negative or equal to Integer.MAX_VALUE
+     */
+    public void set(int i) {
+        if ((i + 1) < 1) throw new IndexOutOfBoundsException("i=" + i);
+        final int w = i >> SHIFT3;
+        final int w1 = w >> SHIFT1;
+        final int w2 = (w >> SHIFT2) & MASK2;
+        int[] a2 = directory[w1];
+        if (a2 == null) a2 = directory[w1] = new int[LENGTH2];
+        if (a2[w2] == 0) a2[w2] = allocateBlock() + 1;
+        final int slot = a2[w2] - 1;
+        final LongBuffer slab = slabs[slot >>> SLAB_SHIFT];
+        final int position = offset(slot) + (w & MASK3);
+        final long word = slab.get(position);
+        final long bit = 1L << i;
+        if ((word & bit) == 0) {
+            slab.put(position, word | bit);
+            cardinality++;
+        }
+    }
+
+    /**
+     * Sets the bit at the specified index to false.
+     *
+     * @param i a bit index
+     * @throws IndexOutOfBoundsException if the specified index is negative or equal to Integer.MAX_VALUE
+     */
+    public void clear(int i) {
+        if ((i + 1) < 1) throw new IndexOutOfBoundsException("i=" + i);
+        final int w = i >> SHIFT3;
+        final int[] a2 = directory[w >> SHIFT1];
+        final int w2 = (w >> SHIFT2) & MASK2;
+        if (a2 == null || a2[w2] == 0) return;
+        final int slot = a2[w2] - 1;
+        final LongBuffer slab = slabs[slot >>> SLAB_SHIFT];
+        final int position = offset(slot) + (w & MASK3);
+        final long word = slab.get(position);
+        final long bit = 1L << i;
+        if ((word & bit) != 0) {
+            slab.put(position, word & ~bit);
+            cardinality--;
+            if (word == bit && isEmptyBlock(slot)) {
+                a2[w2] = 0;
+                freeBlock(slot);
+            }
+        }
+    }
+
+    /**
+     * @param i the bit index
+     * @return the value of the bit with the specified index
+     * @throws IndexOutOfBoundsException if the specified index is negative or equal to Integer.MAX_VALUE
+     */
+    public boolean get(int i) {
+        if ((i + 1) < 1) throw new IndexOutOfBoundsException("i=" + i);
+        final int w = i >> SHIFT3;
+        final int[] a2 = directory[w >> SHIFT1];
+        final int slot;
+        return a2 != null
+                && (slot = a2[(w >> SHIFT2) & MASK2] - 1) >= 0
+                && (slabs[slot >>> SLAB_SHIFT].get(offset(slot) + (w & MASK3)) & (1L << i)) != 0;
+    }
+
+    /**
+     * @param i the index to start checking from (inclusive)
+     * @return the index of the first set bit on or after {@code i}, or -1 if there is no such bit
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public int nextSetBit(int i) {
+        if (i < 0) throw new IndexOutOfBoundsException("i=" + i);
+        int w = i >> SHIFT3;
+        long mask = ~0L << i;
+        for (int w1 = w >> SHIFT1; w1 < MAX_LENGTH1; w1++) {
+            final int[] a2 = directory[w1];
+            if (a2 != null) {
+                for (int w2 = (w >> SHIFT2) & MASK2; w2 < LENGTH2; w2++) {
+                    final int slot = a2[w2] - 1;
+                    if (slot >= 0) {
+                        final LongBuffer slab = slabs[slot >>> SLAB_SHIFT];
+                        final int offset = offset(slot);
+                        for (int w3 = w & MASK3; w3 < LENGTH3; w3++) {
+                            final long word = slab.get(offset + w3) & mask;
+                            if (word != 0) {
+                                return (((w1 << SHIFT1) + (w2 << SHIFT2) + w3) << SHIFT3) + Long.numberOfTrailingZeros(word);
+                            }
+                            mask = ~0L;
+                        }
+                    }
+                    w &= ~MASK3;
+                    mask = ~0L;
+                }
+            }
+            w = 0;
+            mask = ~0L;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of set bits, kept up to date by every operation so it's never computed by a scan
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * Performs a logical <b>OR</b> of this bit set with the given one, only this bit set is modified
+     */
+    public void or(OffHeapSparseBitSet other) {
+        for (int w1 = 0; w1 < MAX_LENGTH1; w1++) {
+            final int[] b2 = other.directory[w1];
+            if (b2 == null) continue;
+            for (int w2 = 0; w2 < LENGTH2; w2++) {
+                final int otherSlot = b2[w2] - 1;
+                if (otherSlot < 0) continue;
+                final LongBuffer otherSlab = other.slabs[otherSlot >>> SLAB_SHIFT];
+                final int otherOffset = offset(otherSlot);
+                final int slot = blockFor(w1, w2);
+                final LongBuffer slab = slabs[slot >>> SLAB_SHIFT];
+                final int offset = offset(slot);
+                for (int w3 = 0; w3 < LENGTH3; w3++) {
+                    final long word = slab.get(offset + w3);
+                    final long result = word | otherSlab.get(otherOffset + w3);
+                    if (result != word) {
+                        slab.put(offset + w3, result);
+                        cardinality += Long.bitCount(result) - Long.bitCount(word);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs a logical <b>OR</b> of this bit set with the given heap one, only this bit set is modified
+     */
+    public void or(SparseBitSet other) {
+        final long[][][] bits = other.bits;
+        final long[] scratch = new long[LENGTH3];
+        for (int w1 = 0; w1 < Math.min(bits.length, MAX_LENGTH1); w1++) {
+            final long[][] b2 = bits[w1];
+            if (b2 == null) continue;
+            for (int w2 = 0; w2 < LENGTH2; w2++) {
+                long[] b3 = b2[w2];
+                if (b3 == null) continue;
+                if (b3.length != LENGTH3) b3 = SparseBitSet.inflate(b3, scratch);
+                int slot = -1;
+                for (int w3 = 0; w3 < LENGTH3; w3++) {
+                    final long otherWord = b3[w3];
+                    if (otherWord == 0) continue;
+                    if (slot < 0) slot = blockFor(w1, w2);
+                    final LongBuffer slab = slabs[slot >>> SLAB_SHIFT];
+                    final int position = offset(slot) + w3;
+                    final long word = slab.get(position);
+                    final long result = word | otherWord;
+                    if (result != word) {
+                        slab.put(position, result);
+                        cardinality += Long.bitCount(result) - Long.bitCount(word);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs a logical <b>AND</b> of this bit set with the given one, only this bit set is modified. Blocks which
+     * become empty are returned to the free list
+     */
+    public void and(OffHeapSparseBitSet other) {
+        for (int w1 = 0; w1 < MAX_LENGTH1; w1++) {
+            final int[] a2 = directory[w1];
+            if (a2 == null) continue;
+            final int[] b2 = other.directory[w1];
+            for (int w2 = 0; w2 < LENGTH2; w2++) {
+                final int slot = a2[w2] - 1;
+                if (slot < 0) continue;
+                final LongBuffer slab = slabs[slot >>> SLAB_SHIFT];
+                final int offset = offset(slot);
+                final int otherSlot = b2 == null ? -1 : b2[w2] - 1;
+                boolean empty = true;
+                for (int w3 = 0; w3 < LENGTH3; w3++) {
+                    final long word = slab.get(offset + w3);
+                    final long result = otherSlot < 0 ? 0 : word & other.slabs[otherSlot >>> SLAB_SHIFT].get(offset(otherSlot) + w3);
+                    if (result != word) {
+                        slab.put(offset + w3, result);
+                        cardinality -= Long.bitCount(word) - Long.bitCount(result);
+                    }
+                    empty &= result == 0;
+                }
+                if (empty) {
+                    a2[w2] = 0;
+                    freeBlock(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a heap copy of this bit set
+     */
+    public SparseBitSet toSparseBitSet() {
+        final SparseBitSet result = new SparseBitSet(Integer.MAX_VALUE);
+        for (int w1 = 0; w1 < MAX_LENGTH1; w1++) {
+            final int[] a2 = directory[w1];
+            if (a2 == null) continue;
+            for (int w2 = 0; w2 < LENGTH2; w2++) {
+                final int slot = a2[w2] - 1;
+                if (slot < 0) continue;
+                final long[] block = new long[LENGTH3];
+                final LongBuffer slab = slabs[slot >>> SLAB_SHIFT].duplicate();
+                ((Buffer) slab).position(offset(slot));
+                slab.get(block);
+                if (result.bits[w1] == null) result.bits[w1] = new long[LENGTH2][];
+                result.bits[w1][w2] = SparseBitSet.compactBlock(block);
+            }
+        }
+        result.cache.hash = 0; //  Invalidate size, etc.
+        return result;
+    }
+
+    /**
+     * @return the number of bytes of direct memory held by this bit set
+     */
+    public long offHeapBytes() {
+        return (long) slabs.length * SLAB_BLOCKS * LENGTH3 * Long.BYTES;
+    }
+
+    /**
+     * Frees the slabs and drops the directory. The closed set reads as empty, and adding bits to it throws
+     * {@link IllegalStateException}, so the freed memory is never touched again. Closing a closed set does nothing.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        Arrays.fill(directory, null);
+        final ByteBuffer[] freed = memory;
+        slabs = new LongBuffer[0];
+        memory = new ByteBuffer[0];
+        for (ByteBuffer buffer : freed) {
+            FREE.accept(buffer);
+        }
+        slotCount = 0;
+        freeSlots = new int[16];
+        freeCount = 0;
+        cardinality = 0;
+    }
+
+    private int blockFor(int w1, int w2) {
+        int[] a2 = directory[w1];
+        if (a2 == null) a2 = directory[w1] = new int[LENGTH2];
+        if (a2[w2] == 0) a2[w2] = allocateBlock() + 1;
+        return a2[w2] - 1;
+    }
+
+    private int allocateBlock() {
+        if (freeCount > 0) return freeSlots[--freeCount];
+        if (slotCount == slabs.length << SLAB_SHIFT) {
+            if (closed) throw new IllegalStateException("The bit set is closed");
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB_BLOCKS * LENGTH3 * Long.BYTES);
+            memory = Arrays.copyOf(memory, memory.length + 1);
+            memory[memory.length - 1] = buffer;
+            slabs = Arrays.copyOf(slabs, slabs.length + 1);
+            slabs[slabs.length - 1] = buffer.order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+        return slotCount++;
+    }
+
+    /**
+     * Returns an all-zero block to the free list, fresh slabs are zeroed as well so allocated blocks are always empty
+     */
+    private void freeBlock(int slot) {
+        if (freeCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeCount << 1);
+        freeSlots[freeCount++] = slot;
+    }
+
+    private boolean isEmptyBlock(int slot) {
+        final LongBuffer slab = slabs[slot >>> SLAB_SHIFT];
+        final int offset = offset(slot);
+        for (int w3 = 0; w3 < LENGTH3; w3++) {
+            if (slab.get(offset + w3) != 0) return false;
+        }
+        return true;
+    }
+
+    private static int offset(int slot) {
+        return (slot & SLAB_MASK) << LEVEL3;
+    }
+
+    /**
+     * Java 9 and later free a direct buffer with {@code Unsafe.invokeCleaner}, Java 8 with the {@code Cleaner} of the
+     * buffer. Both are internal, so they are looked up reflectively, and the buffers are left to the garbage collector
+     * if neither is found.
+     */
+    private static Consumer<ByteBuffer> freeFunction() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException notJava9) {
+            try {
+                final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return buffer -> invoke(clean, invoke(cleaner, buffer));
+            } catch (ReflectiveOperationException | RuntimeException notJava8) {
+                return buffer -> {
+                };
+            }
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments) {
+        try {
+            return method.invoke(target, arguments);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot free a direct buffer", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Cannot free a direct buffer", e.getCause());
+        }
+    }
+}
@@ -11,6 +11,17 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 /**
  *  This class implements a set of bits that grows as needed. Each bit of the
@@ -82,8 +93,18 @@ public class SparseBitSet implements Cloneable, Serializable
         other hand, these three levels have proven, so far, to provide adequate
         speed, and an storage efficient way to deal with sparseness.
 
-        For simplicity, the level3 blocks and the level2 areas are always "full"
-        size, i.e., LENGTH3 and LENGTH2 respectively, and for consistency, the
+        For simplicity, the level2 areas are always "full" size, i.e., LENGTH2,
+        and so are the level3 blocks holding more than a few bits, LENGTH3
+        words. A level3 block holding at most MAX_ARRAY_SIZE3 bits may instead
+        be an "array container" (any block shorter than LENGTH3), listing the
+        sorted positions of its bits, four 16-bit positions per word. When the
+        bits are hashed over the whole index range, almost every block holds
+        just one or two bits, and the container (a single word) is an order of
+        magnitude smaller than the block of LENGTH3 words. The single bit
+        operations work on the containers directly, converting a container to
+        a block when it overflows; setScanner() presents containers to the
+        strategies as blocks, and stores each resulting block in the smaller of
+        the two forms. For consistency, the
         fourth level is of length LENGTH4. The level1 structure is of variable
         length (as this may save scanning several thousand null pointers, and
         careful consideration must be taken of this at all times, in particular,
@@ -234,6 +255,41 @@ public class SparseBitSet implements Cloneable, Serializable
      */
     protected static final int SHIFT1 = LEVEL2 + LEVEL3;
 
+    /**
+     *  MASK_BLOCK is the mask to extract the position of a bit within its
+     *  level3 block from the bit index.
+     */
+    protected static final int MASK_BLOCK = (LENGTH3 << SHIFT3) - 1;
+
+    /**
+     *  A level3 block holding only a few bits is kept as an "array container":
+     *  a block shorter than LENGTH3, each word of which packs four 16-bit
+     *  positions (of bits within the block) in ascending order, and the unused
+     *  positions at the end hold EMPTY_POSITION. A level3 block of length
+     *  LENGTH3 is always a bitmap of words. MAX_ARRAY_LENGTH3 is the length of
+     *  the largest array container.
+     */
+    protected static final int MAX_ARRAY_LENGTH3 = LENGTH3 >> 1;
+
+    /**
+     *  MAX_ARRAY_SIZE3 is the number of positions held by the largest array
+     *  container. A level3 block with more bits set is always a bitmap.
+     */
+    protected static final int MAX_ARRAY_SIZE3 = MAX_ARRAY_LENGTH3 << 2;
+
+    /**
+     *  PARALLEL_SLICE1 is the number of level1 entries below which the parallel
+     *  operations process a slice of the set on a single thread, rather than
+     *  splitting it further.
+     */
+    protected static final int PARALLEL_SLICE1 = 256;
+
+    /**
+     *  EMPTY_POSITION marks an unused position in an array container. It is
+     *  greater than any actual position, so that the unused positions sort last.
+     */
+    protected static final int EMPTY_POSITION = 0xFFFF;
+
     /**
      *  Holds reference to the cache of statistics values computed by the
      *  UpdateStrategy
@@ -242,14 +298,24 @@ public class SparseBitSet implements Cloneable, Serializable
      */
     protected Cache cache;
 
+    /**
+     *  When true, the single bit operations (<i>set</i>(), <i>clear</i>() and
+     *  <i>flip</i>()) keep the exact count of the set bits up-to-date in the
+     *  cache, so that <i>cardinality</i>() does not need to scan the set.
+     * @see #trackCardinality(boolean)
+     */
+    protected boolean trackCardinality;
+
     //=============================================================================
-    //  Stack structures used for recycling blocks
+    //  Pool used for recycling blocks
     //=============================================================================
-    // private static final int STACK_SIZE = 1000;
-
-    // private static final long[][] stack = new long[STACK_SIZE][LENGTH3];
-
-    // private static int stackIndex = 0;
+    /**
+     *  The pool giving the bitmap blocks and level2 areas needed by this set,
+     *  and taking back those it drops, or null if they are just allocated and
+     *  left to the garbage collector.
+     * @see #setBlockPool(BlockPool)
+     */
+    protected transient BlockPool pool;
 
     /**
      *  A spare level 3 block is kept for use when scanning. When a target block
@@ -261,6 +327,24 @@ public class SparseBitSet implements Cloneable, Serializable
      */
     protected long[] spare;
 
+    /**
+     *  The level1 array of the latest snapshot taken by <i>snapshot</i>(), or
+     *  null if there is none. Any array of this set which is also reachable
+     *  from it (compared by identity) is shared with the snapshot, and is copied
+     *  before it is written. Earlier snapshots need not be tracked, since all
+     *  the arrays still shared with them were in this set when the latest
+     *  snapshot was taken.
+     *
+     * @see #snapshot()
+     */
+    protected transient long[][][] shared;
+
+    /**
+     *  A level 3 block used by the set scanner to read an array container of
+     *  the other set in the form of a bitmap.
+     */
+    protected long[] scratch;
+
     /** An empty level 3 block is kept for use when scanning. When a source block
      *  is needed, and there is not already one in the corresponding bit set, the
      *  ZERO_BLOCK is used (as a read-only block). It is a source of zero values
@@ -376,6 +460,7 @@ public class SparseBitSet implements Cloneable, Serializable
     }
 
     public void setBits(long[][][] bits) {
+        this.shared = null;
         this.bits = bits;
     }
 
@@ -454,6 +539,7 @@ public class SparseBitSet implements Cloneable, Serializable
      */
     public void and(SparseBitSet b)
     {
+        recycle(Math.min(bits.length, b.bits.length));
         nullify(Math.min(bits.length, b.bits.length)); // Optimisation
         setScanner(0, Math.min(bitsLength, b.bitsLength), b, andStrategy);
     }
@@ -477,6 +563,71 @@ public class SparseBitSet implements Cloneable, Serializable
         return result;
     }
 
+    /**
+     *  Performs a logical <b>AND</b> of all the given <code>SparseBitSet</code>s
+     *  in a single pass. The level1 and level2 entries of all the sets are
+     *  walked together, and a block of the result is only computed where every
+     *  set has the corresponding block. Each block of the result is allocated
+     *  once; none of the given sets is modified.
+     *
+     * @param       sets the SparseBitSets to be combined
+     * @return      a new SparseBitSet representing the <b>AND</b> of the sets,
+     *              which is empty if no set is given
+     */
+    public static SparseBitSet andAll(Collection<SparseBitSet> sets)
+    {
+        final SparseBitSet[] inputs = sets.toArray(new SparseBitSet[sets.size()]);
+        if (inputs.length == 0)
+            return new SparseBitSet();
+        int bitsLength = Integer.MAX_VALUE;
+        int length1 = MAX_LENGTH1;
+        for (SparseBitSet input : inputs)
+        {
+            bitsLength = Math.min(bitsLength, input.bitsLength);
+            length1 = Math.min(length1, input.bits.length);
+        }
+        final SparseBitSet result = new SparseBitSet(bitsLength);
+        final long[][][] b2s = new long[inputs.length][][];
+        long[] block = new long[LENGTH3];
+        final long[] mask = new long[LENGTH3];
+        nextArea:
+        for (int w1 = 0; w1 != length1; ++w1)
+        {
+            for (int k = 0; k != inputs.length; ++k)
+                if ((b2s[k] = inputs[k].bits[w1]) == null)
+                    continue nextArea;
+            long[][] a2 = null;
+            nextBlock:
+            for (int w2 = 0; w2 != LENGTH2; ++w2)
+            {
+                for (long[][] b2 : b2s)
+                    if (b2[w2] == null)
+                        continue nextBlock;
+                final long[] first = b2s[0][w2];
+                if (first.length == LENGTH3)
+                    System.arraycopy(first, 0, block, 0, LENGTH3);
+                else
+                    inflate(first, block);
+                boolean isZero = false;
+                for (int k = 1; k != b2s.length && !isZero; ++k)
+                {
+                    final long[] b3 = b2s[k][w2];
+                    final long[] words = b3.length == LENGTH3 ? b3 : inflate(b3, mask);
+                    isZero = true; //  Presumption
+                    for (int w3 = 0; w3 != LENGTH3; ++w3)
+                        isZero &= (block[w3] &= words[w3]) == 0L;
+                }
+                if (isZero || isEmptyBlock(block))
+                    continue;
+                if (a2 == null)
+                    a2 = result.bits[w1] = new long[LENGTH2][];
+                block = keepBlock(a2, w2, block);
+            }
+        }
+        result.cache.hash = 0; //  Invalidate size, etc.
+        return result;
+    }
+
     /**
      *  Performs a logical <b>AndNOT</b> of the addressed target bit with the
      *  argument value. This bit set is modified so that the addressed bit has the
@@ -565,10 +716,70 @@ public class SparseBitSet implements Cloneable, Serializable
      */
     public int cardinality()
     {
+        if (cache.liveCardinality >= 0)
+            return cache.liveCardinality; //  Kept up-to-date by bit operations
         statisticsUpdate(); // Update size, cardinality and length values
         return cache.cardinality;
     }
 
+    /**
+     *  Returns the number of bits set to <code>true</code> in both this
+     *  <code>SparseBitSet</code> and the argument, i.e. the cardinality of
+     *  their <b>AND</b>. The two sets are walked in step, block by block, so no
+     *  result set is created and neither set is modified.
+     *
+     * @param       b the other SparseBitSet
+     * @return      the number of bits set in both sets
+     */
+    public int andCardinality(SparseBitSet b)
+    {
+        final long[][][] a1 = bits;
+        final long[][][] b1 = b.bits;
+        final int length1 = Math.min(a1.length, b1.length);
+        int count = 0;
+        for (int w1 = 0; w1 != length1; ++w1)
+        {
+            final long[][] a2 = a1[w1];
+            final long[][] b2 = b1[w1];
+            if (a2 == null || b2 == null)
+                continue;
+            for (int w2 = 0; w2 != LENGTH2; ++w2)
+            {
+                final long[] a3 = a2[w2];
+                final long[] b3 = b2[w2];
+                if (a3 != null && b3 != null)
+                    count += andCardinality(a3, b3);
+            }
+        }
+        return count;
+    }
+
+    /**
+     *  Returns the number of bits set to <code>true</code> in this
+     *  <code>SparseBitSet</code>, in the argument, or in both, i.e. the
+     *  cardinality of their <b>OR</b>. No result set is created.
+     *
+     * @param       b the other SparseBitSet
+     * @return      the number of bits set in either set
+     */
+    public int orCardinality(SparseBitSet b)
+    {
+        return cardinality() + b.cardinality() - andCardinality(b);
+    }
+
+    /**
+     *  Returns the number of bits set to <code>true</code> in this
+     *  <code>SparseBitSet</code> and not in the argument, i.e. the cardinality
+     *  of their <b>AndNOT</b>. No result set is created.
+     *
+     * @param       b the other SparseBitSet
+     * @return      the number of bits set in this set only
+     */
+    public int andNotCardinality(SparseBitSet b)
+    {
+        return cardinality() - andCardinality(b);
+    }
+
     /**
      *  Sets the bit at the specified index to <code>false</code>.
      *
@@ -587,13 +798,28 @@ public class SparseBitSet implements Cloneable, Serializable
         if (i > bitsLength)
             return;
         final int w = i >> SHIFT3;
+        if (shared != null)
+            unshare(w >> SHIFT1, (w >> SHIFT2) & MASK2);
         long[][] a2;
         if ((a2 = bits[w >> SHIFT1]) == null)
             return;
         long[] a3;
         if ((a3 = a2[(w >> SHIFT2) & MASK2]) == null)
             return;
-        a3[w & MASK3] &= ~(1L << i); //  Clear the indicated bit
+        if (a3.length != LENGTH3) //  An array container
+        {
+            if (containerRemove(a3, i & MASK_BLOCK))
+            {
+                if (cache.liveCardinality >= 0)
+                    --cache.liveCardinality;
+                cache.hash = 0; //  Invalidate size, etc.,
+            }
+            return;
+        }
+        final long word = a3[w & MASK3];
+        a3[w & MASK3] = word & ~(1L << i); //  Clear the indicated bit
+        if (cache.liveCardinality >= 0 && (word & (1L << i)) != 0)
+            --cache.liveCardinality;
         cache.hash = 0; //  Invalidate size, etc.,
     }
 
@@ -622,7 +848,10 @@ public class SparseBitSet implements Cloneable, Serializable
     public void clear()
     {
         /*  This simply resets to null all the entries in the set. */
+        recycle(0);
         nullify(0);
+        if (trackCardinality)
+            cache.liveCardinality = 0;
     }
 
     /**
@@ -651,6 +880,8 @@ public class SparseBitSet implements Cloneable, Serializable
                 copies of the references from this set), and then replace these
                 by a deep copy (created by a "copy" from the set being cloned . */
             result.bits = null;
+            result.shared = null;
+            result.pool = null;
             result.resize(1);
             /*  Ensure the clone is not sharing a copy of a spare block with
                 the cloned set, nor the cache set, nor any of the visitors (which
@@ -669,6 +900,100 @@ public class SparseBitSet implements Cloneable, Serializable
         }
     }
 
+    /**
+     *  Returns an immutable, compacted snapshot of this bit set, which may be
+     *  read by many threads at once without synchronization: its statistics
+     *  are computed in advance, so that none of its queries modifies it. This
+     *  set is not changed, and later changes to it are not seen by the
+     *  snapshot.
+     *
+     * @return      the snapshot
+     * @see         FrozenSparseBitSet
+     */
+    public FrozenSparseBitSet freeze()
+    {
+        return new FrozenSparseBitSet(this);
+    }
+
+    /**
+     *  Returns a read-only view of the current content of this bit set, taken
+     *  in constant time: the snapshot shares the level1, level2 and level3
+     *  arrays of this set, and a later change of this set copies just the
+     *  arrays it writes that are still shared, so that the snapshot keeps
+     *  seeing the bits as they were. Single bit operations copy at most one
+     *  level1 array, one level2 area and one level3 block; other operations
+     *  copy everything still shared the first time they are called after a
+     *  snapshot. Unlike <i>freeze</i>(), the snapshot is not compacted, and its
+     *  statistics are computed when first asked for.
+     *  <p>
+     *  The snapshot may be read by other threads while this set keeps being
+     *  changed by its owning thread.
+     *
+     * @return      the snapshot
+     * @see         #freeze()
+     * @see         FrozenSparseBitSet
+     */
+    public FrozenSparseBitSet snapshot()
+    {
+        shared = bits;
+        return new FrozenSparseBitSet(this, bits);
+    }
+
+    /**
+     *  Copies the level1 array, the level2 area <code>w1</code> and its level3
+     *  block <code>w2</code> if they are shared with the latest snapshot, so
+     *  that they can be written. Only used while there is a snapshot.
+     *
+     * @param       w1 the level1 index
+     * @param       w2 the level2 index
+     * @see         #snapshot()
+     */
+    protected final void unshare(int w1, int w2)
+    {
+        final long[][][] s1 = shared;
+        if (bits == s1)
+            bits = s1.clone();
+        long[][] a2 = bits[w1];
+        final long[][] s2;
+        if (a2 == null || w1 >= s1.length || (s2 = s1[w1]) == null)
+            return;
+        if (a2 == s2)
+            a2 = bits[w1] = a2.clone();
+        final long[] a3 = a2[w2];
+        if (a3 != null && a3 == s2[w2])
+            a2[w2] = a3.clone();
+    }
+
+    /**
+     *  Copies every array of this set still shared with the latest snapshot,
+     *  and forgets the snapshot. Used before the operations which may write
+     *  anywhere in the set.
+     *
+     * @see         #snapshot()
+     */
+    protected final void unshareAll()
+    {
+        final long[][][] s1 = shared;
+        if (s1 == null)
+            return;
+        shared = null;
+        if (bits == s1)
+            bits = s1.clone();
+        final long[][][] a1 = bits;
+        for (int w1 = Math.min(a1.length, s1.length); --w1 >= 0; )
+        {
+            long[][] a2 = a1[w1];
+            final long[][] s2 = s1[w1];
+            if (a2 == null || s2 == null)
+                continue;
+            if (a2 == s2)
+                a2 = a1[w1] = a2.clone();
+            for (int w2 = 0; w2 != LENGTH2; ++w2)
+                if (a2[w2] != null && a2[w2] == s2[w2])
+                    a2[w2] = a2[w2].clone();
+        }
+    }
+
     /**
      *  Compares this object against the specified object. The result is
      *  <code>true</code> if and only if the argument is not <code>null</code>
@@ -716,13 +1041,35 @@ public class SparseBitSet implements Cloneable, Serializable
 
         if (i >= bitsLength)
             resize(i);
+        if (shared != null)
+            unshare(w1, w2);
         long[][] a2;
         if ((a2 = bits[w1]) == null)
-            a2 = bits[w1] = new long[LENGTH2][];
+            a2 = bits[w1] = newArea();
         long[] a3;
         if ((a3 = a2[w2]) == null)
-            a3 = a2[w2] = new long[LENGTH3];
-        a3[w & MASK3] ^= 1L << i; //Flip the designated bit
+        {
+            a2[w2] = containerOf(i & MASK_BLOCK); //  A new block with this bit
+            if (cache.liveCardinality >= 0)
+                ++cache.liveCardinality;
+            cache.hash = 0; //  Invalidate size, etc., values
+            return;
+        }
+        if (a3.length != LENGTH3) //  An array container
+        {
+            final int p = i & MASK_BLOCK;
+            final boolean wasSet = containerRemove(a3, p);
+            if (!wasSet)
+                a2[w2] = addPosition(a3, p);
+            if (cache.liveCardinality >= 0)
+                cache.liveCardinality += wasSet ? -1 : 1;
+            cache.hash = 0; //  Invalidate size, etc., values
+            return;
+        }
+        final long word = a3[w & MASK3];
+        a3[w & MASK3] = word ^ (1L << i); //Flip the designated bit
+        if (cache.liveCardinality >= 0)
+            cache.liveCardinality += (word & (1L << i)) == 0 ? 1 : -1;
         cache.hash = 0; //  Invalidate size, etc., values
     }
 
@@ -765,7 +1112,8 @@ public class SparseBitSet implements Cloneable, Serializable
         long[] a3;
         return i < bitsLength && (a2 = bits[w >> SHIFT1]) != null
                 && (a3 = a2[(w >> SHIFT2) & MASK2]) != null
-                && ((a3[w & MASK3] & (1L << i)) != 0);
+                && (a3.length == LENGTH3 ? (a3[w & MASK3] & (1L << i)) != 0
+                : containerIndexOf(a3, i & MASK_BLOCK) >= 0);
     }
 
     /**
@@ -871,6 +1219,8 @@ public class SparseBitSet implements Cloneable, Serializable
      */
     public boolean isEmpty()
     {
+        if (cache.liveCardinality >= 0)
+            return cache.liveCardinality == 0;
         statisticsUpdate();
         return cache.cardinality == 0;
     }
@@ -925,7 +1275,7 @@ public class SparseBitSet implements Cloneable, Serializable
         whether the starting bit is within the structure at all. */
         if (w1 < aLength && (a2 = bits[w1]) != null
                 && (a3 = a2[w2]) != null
-                && ((nword = ~a3[w3] & (~0L << i))) == 0L)
+                && ((nword = ~blockWord(a3, w3) & (~0L << i))) == 0L)
         {
             /*  So now start a search though the rest of the entries for
                 a null area or block, or a clear bit (a set bit in the
@@ -934,23 +1284,27 @@ public class SparseBitSet implements Cloneable, Serializable
             w3 = w & MASK3;
             w2 = (w >> SHIFT2) & MASK2;
             w1 = w >> SHIFT1;
+            nword = ~0L; //  Whatever is beyond the end of the structure is clear
             loop: for (; w1 != aLength; ++w1)
             {
-                if ((a2 = bits[w1]) != null)
-                    for (; w2 != LENGTH2; ++w2)
-                    {
-                        if ((a3 = a2[w2]) != null)
-                            for (; w3 != LENGTH3; ++w3)
-                                if ((nword = ~a3[w3]) != 0)
-                                    break loop;
-                        w3 = 0;
-                    }
+                if ((a2 = bits[w1]) == null)
+                    break; //  A null area is all clear bits
+                for (; w2 != LENGTH2; ++w2)
+                {
+                    if ((a3 = a2[w2]) == null)
+                        break loop; //  And so is a null block
+                    for (; w3 != LENGTH3; ++w3)
+                        if ((nword = ~blockWord(a3, w3)) != 0)
+                            break loop;
+                    w3 = 0;
+                }
                 w2 = w3 = 0;
+                nword = ~0L;
             }
         }
         final int result = (((w1 << SHIFT1) + (w2 << SHIFT2) + w3) << SHIFT3)
                 + Long.numberOfTrailingZeros(nword);
-        return (result == Integer.MAX_VALUE ? -1 : result);
+        return (result < 0 || result == Integer.MAX_VALUE ? -1 : result);
     }
 
     /**
@@ -982,46 +1336,171 @@ public class SparseBitSet implements Cloneable, Serializable
 
         if (i < 0)
             throw new IndexOutOfBoundsException("i=" + i);
-        /*  This is the word from which the search begins. */
-        int w = i >> SHIFT3;
-        int w3 = w & MASK3;
+        /*  This is the block from which the search begins, and the position of
+            the nominated beginning bit within that block. */
+        final int w = i >> SHIFT3;
         int w2 = (w >> SHIFT2) & MASK2;
         int w1 = w >> SHIFT1;
+        int p = i & MASK_BLOCK;
 
-        long word = 0L;
         final int aLength = bits.length;
 
         long[][] a2;
         long[] a3;
-        /*  Is the next set bit in the same word at the nominated beginning bit
-        (including the nominated beginning bit itself). The first check is
-        whether the starting bit is within the structure at all. */
-        if (w1 < aLength && ((a2 = bits[w1]) == null
-                || (a3 = a2[w2]) == null
-                || ((word = a3[w3] & (~0L << i)) == 0L)))
+        /*  Search the starting block from the nominated beginning bit, and
+            then the rest of the blocks from their beginning. */
+        for (; w1 < aLength; ++w1)
         {
-            /*  So now start a search though the rest of the entries for a bit. */
-            ++w;
-            w3 = w & MASK3;
-            w2 = (w >> SHIFT2) & MASK2;
-            w1 = w >> SHIFT1;
-            major: for (; w1 != aLength; ++w1)
+            if ((a2 = bits[w1]) != null)
+                for (; w2 != LENGTH2; ++w2)
+                {
+                    if ((a3 = a2[w2]) != null && (p = nextSetInBlock(a3, p)) >= 0)
+                        return (((w1 << SHIFT1) + (w2 << SHIFT2)) << SHIFT3) + p;
+                    p = 0;
+                }
+            w2 = p = 0;
+        }
+        return -1;
+    }
+
+    /**
+     *  Returns an iterator over the indices of the bits set to <code>true</code>,
+     *  in ascending order. Unlike a loop over <i>nextSetBit</i>(), which
+     *  descends the levels of the set from the top for each bit, the iterator
+     *  keeps its position in the set and moves from word to word. The set must
+     *  not be modified while the iterator is in use.
+     *
+     * @return      an iterator over the indices of the set bits
+     */
+    public PrimitiveIterator.OfInt iterator()
+    {
+        return new SetBitIterator(0, MAX_LENGTH1);
+    }
+
+    /**
+     *  Returns a sequential <code>IntStream</code> of the indices of the bits
+     *  set to <code>true</code>, in ascending order. The stream may be made
+     *  parallel, in which case the set is split along the boundaries of its
+     *  level1 entries, see <code>SetBitSpliterator</code>. The set must not be
+     *  modified while the stream is in use.
+     *
+     * @return      a stream of the indices of the set bits
+     */
+    public IntStream stream()
+    {
+        return StreamSupport.intStream(new SetBitSpliterator(), false);
+    }
+
+    /**
+     *  Copies the indices of the bits set to <code>true</code>, starting from the
+     *  given index, into the buffer, in ascending order, until either the buffer
+     *  is full or there are no more set bits. To copy all the set bits, a buffer
+     *  at a time, use the following loop:
+     *
+     *  <pre>
+     *  for( int n, i = 0; (n = sbbits.drainTo(buffer, i)) != 0; i = buffer[n-1]+1 )
+     *  {
+     *      // operate on buffer[0] .. buffer[n-1] here
+     *      if( n < buffer.length ) break;
+     *  }</pre>
+     *
+     * @param       buffer the array receiving the indices, from its start
+     * @param       fromIndex the index to start copying from (inclusive)
+     * @return      the number of indices copied into the buffer
+     * @exception   IndexOutOfBoundsException if the specified index is negative
+     */
+    public int drainTo(int[] buffer, int fromIndex)
+    {
+        if (fromIndex < 0)
+            throw new IndexOutOfBoundsException("fromIndex=" + fromIndex);
+        return new SetBitIterator(fromIndex, MAX_LENGTH1).drain(buffer);
+    }
+
+    /**
+     *  Returns the number of bits set to <code>true</code> with an index lower
+     *  than the given one. The first call after the set was changed builds an
+     *  index of the cumulative counts of the set bits of the level3 blocks,
+     *  so that this, and <i>select</i>(), take logarithmic time.
+     *
+     * @param       i the index up to which to count (exclusive)
+     * @return      the number of set bits before the given index
+     * @exception   IndexOutOfBoundsException if the specified index is negative
+     * @see         #select(int)
+     */
+    public int rank(int i)
+    {
+        if (i < 0)
+            throw new IndexOutOfBoundsException("i=" + i);
+        rankUpdate();
+        final int[] blocks = cache.rankBlocks;
+        final int[] counts = cache.rankCounts;
+        int n = Arrays.binarySearch(blocks, i >> (SHIFT2 + SHIFT3));
+        if (n < 0)
+            return counts[-n - 1]; //  All the bits of the blocks before it
+        final int block = blocks[n];
+        final long[] a3 = bits[block >> LEVEL2][block & MASK2];
+        final int p = i & MASK_BLOCK;
+        int count = counts[n];
+        if (a3.length != LENGTH3)
+        {
+            final int k = containerIndexOf(a3, p);
+            return count + (k < 0 ? -k - 1 : k);
+        }
+        final int u3 = p >> SHIFT3;
+        for (int w3 = 0; w3 != u3; ++w3)
+            count += Long.bitCount(a3[w3]);
+        return count + Long.bitCount(a3[u3] & ((1L << p) - 1L));
+    }
+
+    /**
+     *  Returns the index of the k-th bit set to <code>true</code>, counting
+     *  from zero, so that <code>rank(select(k)) == k</code>. It uses the same
+     *  index as <i>rank</i>().
+     *
+     * @param       k the number of set bits preceding the one looked for
+     * @return      the index of the bit, or -1 if fewer than
+     *              <code>k + 1</code> bits are set
+     * @exception   IndexOutOfBoundsException if <code>k</code> is negative
+     * @see         #rank(int)
+     */
+    public int select(int k)
+    {
+        if (k < 0)
+            throw new IndexOutOfBoundsException("k=" + k);
+        rankUpdate();
+        final int[] blocks = cache.rankBlocks;
+        final int[] counts = cache.rankCounts;
+        if (k >= counts[blocks.length])
+            return -1;
+        /*  Find the last block with fewer than k + 1 bits before it. */
+        int low = 0;
+        int high = blocks.length - 1;
+        while (low < high)
+        {
+            final int mid = (low + high + 1) >>> 1;
+            if (counts[mid] <= k)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        final int block = blocks[low];
+        final long[] a3 = bits[block >> LEVEL2][block & MASK2];
+        final int base = block << (SHIFT2 + SHIFT3);
+        int r = k - counts[low];
+        if (a3.length != LENGTH3)
+            return base + position(a3, r);
+        for (int w3 = 0; ; ++w3)
+        {
+            long word = a3[w3];
+            final int c = Long.bitCount(word);
+            if (r < c)
             {
-                if ((a2 = bits[w1]) != null)
-                    for (; w2 != LENGTH2; ++w2)
-                    {
-                        if ((a3 = a2[w2]) != null)
-                            for (; w3 != LENGTH3; ++w3)
-                                if ((word = a3[w3]) != 0)
-                                    break major;
-                        w3 = 0;
-                    }
-                w2 = w3 = 0;
+                for (; r != 0; --r)
+                    word &= word - 1L;
+                return base + (w3 << SHIFT3) + Long.numberOfTrailingZeros(word);
             }
+            r -= c;
         }
-        return (w1 >= aLength ? -1
-                : (((w1 << SHIFT1) + (w2 << SHIFT2) + w3) << SHIFT3)
-                + Long.numberOfTrailingZeros(word));
     }
 
     /**
@@ -1100,6 +1579,172 @@ public class SparseBitSet implements Cloneable, Serializable
         return result;
     }
 
+    /**
+     *  Performs a logical <b>OR</b> of all the given <code>SparseBitSet</code>s
+     *  in a single pass, rather than one set at a time. The level1 and level2
+     *  entries of all the sets are walked together, and the words of every set
+     *  having a given block are <b>OR</b>ed into the same block of the result,
+     *  which is allocated once. None of the given sets is modified.
+     *
+     * @param       sets the SparseBitSets to be combined
+     * @return      a new SparseBitSet representing the <b>OR</b> of the sets
+     * @see         #or(Collection)
+     */
+    public static SparseBitSet orAll(Collection<SparseBitSet> sets)
+    {
+        int bitsLength = 1;
+        for (SparseBitSet set : sets)
+            bitsLength = Math.max(bitsLength, set.bitsLength);
+        final SparseBitSet result = new SparseBitSet(bitsLength);
+        result.or(sets);
+        return result;
+    }
+
+    /**
+     *  Performs a logical <b>OR</b> of this bit set with all the given
+     *  <code>SparseBitSet</code>s in a single pass, as does
+     *  <i>orAll</i>(Collection), but in place: the level1 and level2 entries of
+     *  all the sets are walked together, and the words of every set having a
+     *  given block are <b>OR</b>ed into the block of this set, or into a block
+     *  allocated once when this set has none there. The given sets are not
+     *  modified.
+     *
+     * @param       sets the SparseBitSets with which to perform the <b>OR</b>
+     *              operation with this SparseBitSet
+     * @see         #orAll(Collection)
+     */
+    public void or(Collection<SparseBitSet> sets)
+    {
+        final SparseBitSet[] inputs = sets.toArray(new SparseBitSet[sets.size()]);
+        unshareAll();
+        int length1 = 0;
+        for (SparseBitSet input : inputs)
+        {
+            if (input.bitsLength > bitsLength)
+                resize(input.bitsLength - 1);
+            length1 = Math.max(length1, input.bits.length);
+        }
+        cache.hash = 0; //  Invalidate size, etc.
+        cache.liveCardinality = -1;
+        final long[][][] a1 = bits;
+        long[] block = new long[LENGTH3];
+        for (int w1 = 0; w1 != length1; ++w1)
+        {
+            long[][] a2 = a1[w1];
+            for (int w2 = 0; w2 != LENGTH2; ++w2)
+            {
+                final long[] a3 = (a2 != null ? a2[w2] : null);
+                /*  The words are ORed into the block of this set when it is a
+                    bitmap, and otherwise into the scratch block, which is
+                    prepared when the first of the other sets having the block
+                    is met. */
+                long[] target = null;
+                for (SparseBitSet input : inputs)
+                {
+                    final long[][] b2;
+                    final long[] b3;
+                    if (w1 >= input.bits.length || (b2 = input.bits[w1]) == null
+                            || (b3 = b2[w2]) == null || b3 == a3)
+                        continue;
+                    if (target == null)
+                    {
+                        if (a3 != null && a3.length == LENGTH3)
+                            target = a3;
+                        else if (a3 != null)
+                            target = inflate(a3, block);
+                        else
+                            target = block;
+                    }
+                    if (b3.length == LENGTH3)
+                        for (int w3 = 0; w3 != LENGTH3; ++w3)
+                            target[w3] |= b3[w3];
+                    else
+                    {
+                        final int limit = b3.length << 2;
+                        int p;
+                        for (int n = 0; n != limit && (p = position(b3, n)) != EMPTY_POSITION; ++n)
+                            target[p >> SHIFT3] |= 1L << p;
+                    }
+                }
+                if (target == null || target == a3)
+                    continue; //  Nothing to add, or added in place
+                if (a3 == null && isEmptyBlock(block))
+                    continue;
+                if (a2 == null)
+                    a2 = a1[w1] = newArea();
+                block = keepBlock(a2, w2, block);
+            }
+        }
+    }
+
+    /**
+     *  Performs a logical <b>OR</b> of this bit set with the bit set argument,
+     *  as does <i>or</i>(SparseBitSet), but splits the level1 entries into
+     *  disjoint slices which are processed in parallel by the common
+     *  <code>ForkJoinPool</code>. The slices never share level2 arrays, so the
+     *  threads need no synchronization. The argument must not be modified
+     *  while the operation runs.
+     *
+     * @param       b the SparseBitSet with which to perform the <b>OR</b>
+     *              operation with this SparseBitSet
+     * @see         #or(SparseBitSet)
+     */
+    public void orParallel(SparseBitSet b)
+    {
+        orParallel(b, ForkJoinPool.commonPool());
+    }
+
+    /**
+     *  Performs a logical <b>OR</b> of this bit set with the bit set argument,
+     *  processing disjoint slices of the level1 entries in the given pool.
+     *
+     * @param       b the SparseBitSet with which to perform the <b>OR</b>
+     *              operation with this SparseBitSet
+     * @param       pool the pool running the slices
+     * @see         #orParallel(SparseBitSet)
+     */
+    public void orParallel(SparseBitSet b, ForkJoinPool pool)
+    {
+        unshareAll();
+        if (bits.length < b.bits.length)
+            resize(b.bitsLength - 1);
+        cache.hash = 0; //  Invalidate size, etc.
+        cache.liveCardinality = -1;
+        pool.invoke(new SliceTask(b, 0, b.bits.length, true));
+    }
+
+    /**
+     *  Performs a logical <b>AND</b> of this target bit set with the argument
+     *  bit set, as does <i>and</i>(SparseBitSet), but splits the level1
+     *  entries into disjoint slices which are processed in parallel by the
+     *  common <code>ForkJoinPool</code>. The argument must not be modified
+     *  while the operation runs.
+     *
+     * @param       b a SparseBitSet
+     * @see         #and(SparseBitSet)
+     */
+    public void andParallel(SparseBitSet b)
+    {
+        andParallel(b, ForkJoinPool.commonPool());
+    }
+
+    /**
+     *  Performs a logical <b>AND</b> of this target bit set with the argument
+     *  bit set, processing disjoint slices of the level1 entries in the given
+     *  pool.
+     *
+     * @param       b a SparseBitSet
+     * @param       pool the pool running the slices
+     * @see         #andParallel(SparseBitSet)
+     */
+    public void andParallel(SparseBitSet b, ForkJoinPool pool)
+    {
+        unshareAll();
+        cache.hash = 0; //  Invalidate size, etc.
+        cache.liveCardinality = -1;
+        pool.invoke(new SliceTask(b, 0, bits.length, false));
+    }
+
     /**
      *  Sets the bit at the specified index.
      *
@@ -1118,13 +1763,113 @@ public class SparseBitSet implements Cloneable, Serializable
 
         if (i >= bitsLength)
             resize(i);
+        if (shared != null)
+            unshare(w1, w2);
         long[][] a2;
         if ((a2 = bits[w1]) == null)
-            a2 = bits[w1] = new long[LENGTH2][];
+            a2 = bits[w1] = newArea();
         long[] a3;
         if ((a3 = a2[w2]) == null)
-            a3 = a2[w2] = new long[LENGTH3];
-        a3[w & MASK3] |= 1L << i;
+        {
+            a2[w2] = containerOf(i & MASK_BLOCK); //  A new block with this bit
+            if (cache.liveCardinality >= 0)
+                ++cache.liveCardinality;
+            cache.hash = 0; //Invalidate size, etc., scan
+            return;
+        }
+        if (a3.length != LENGTH3) //  An array container
+        {
+            final int p = i & MASK_BLOCK;
+            if (containerIndexOf(a3, p) < 0)
+            {
+                a2[w2] = addPosition(a3, p);
+                if (cache.liveCardinality >= 0)
+                    ++cache.liveCardinality;
+                cache.hash = 0; //Invalidate size, etc., scan
+            }
+            return;
+        }
+        final long word = a3[w & MASK3];
+        a3[w & MASK3] = word | (1L << i);
+        if (cache.liveCardinality >= 0 && (word & (1L << i)) == 0)
+            ++cache.liveCardinality;
+        cache.hash = 0; //Invalidate size, etc., scan
+    }
+
+    /**
+     *  Sets the bits at the indices held by the <code>from</code> (inclusive) to
+     *  <code>to</code> (exclusive) part of the given array. The result is the
+     *  same as that of calling <i>set</i>(int) for each of them, but the set is
+     *  resized at most once, the statistics are invalidated once, and the level3
+     *  block found for an index is reused for the following indices falling into
+     *  the same block. Hence, when the indices are sorted, each level2 area and
+     *  level3 block is looked up exactly once for the whole batch.
+     *
+     * @param       indices an array holding the bit indices
+     * @param       from the position of the first index to use
+     * @param       to the position after the last index to use
+     * @exception   IndexOutOfBoundsException if any of the given indices is
+     *              negative or equal to Integer.MAX_VALUE (in which case no bit is
+     *              changed)
+     */
+    public void setAll(int[] indices, int from, int to)
+    {
+        int max = -1;
+        for (int n = from; n != to; ++n)
+        {
+            final int i = indices[n];
+            if ((i + 1) < 1)
+                throw new IndexOutOfBoundsException("i=" + i);
+            if (i > max)
+                max = i;
+        }
+        if (max < 0)
+            return;
+        if (max >= bitsLength)
+            resize(max);
+        int block = -1; //  Level3 block (area and block index) of a3
+        long[][] a2 = null;
+        long[] a3 = null;
+        int added = 0; //  Count of bits that were not set before
+        for (int n = from; n != to; ++n)
+        {
+            final int i = indices[n];
+            final int w = i >> SHIFT3;
+            final int w2 = (w >> SHIFT2) & MASK2;
+            if (w >> SHIFT2 != block)
+            {
+                block = w >> SHIFT2;
+                final int w1 = w >> SHIFT1;
+                if (shared != null)
+                    unshare(w1, w2);
+                if ((a2 = bits[w1]) == null)
+                    a2 = bits[w1] = newArea();
+                if ((a3 = a2[w2]) == null)
+                {
+                    a3 = a2[w2] = containerOf(i & MASK_BLOCK);
+                    ++added;
+                    continue;
+                }
+            }
+            if (a3.length != LENGTH3) //  An array container, may overflow
+            {
+                final int p = i & MASK_BLOCK;
+                if (containerIndexOf(a3, p) < 0)
+                {
+                    a3 = a2[w2] = addPosition(a3, p);
+                    ++added;
+                }
+                continue;
+            }
+            final long word = a3[w & MASK3];
+            if ((word & (1L << i)) == 0)
+            {
+                a3[w & MASK3] = word | (1L << i);
+                ++added;
+            }
+        }
+        if (cache.liveCardinality >= 0)
+            cache.liveCardinality += added;
         cache.hash = 0; //Invalidate size, etc., scan
     }
 
@@ -1400,6 +2145,62 @@ public class SparseBitSet implements Cloneable, Serializable
             compactionCountDefault = compactionCount;
     }
 
+    /**
+     *  Sets the pool from which this set takes the bitmap blocks and level2
+     *  areas it needs, and to which it gives back those it drops, e.g. when
+     *  cleared. This cuts the allocation rate of sets which are repeatedly
+     *  cleared and filled again. A pool is not thread-safe, and may be shared
+     *  only by sets used by one thread. Operations run in parallel
+     *  (<i>orParallel</i>() and <i>andParallel</i>()) do not use the pool,
+     *  nor are the arrays shared with a snapshot given back to it. The arrays
+     *  returned by <i>getBits</i>() must not be kept while a pool is set.
+     *
+     * @param       pool the pool, or null to allocate the arrays, as by default
+     * @see         BlockPool
+     */
+    public void setBlockPool(BlockPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     *  Returns the pool set by <i>setBlockPool</i>().
+     *
+     * @return      the pool, or null if there is none
+     */
+    public BlockPool getBlockPool()
+    {
+        return pool;
+    }
+
+    /**
+     *  Switches on or off the tracking of the exact cardinality. While it is on,
+     *  the single bit operations (<i>set</i>(), <i>clear</i>() and
+     *  <i>flip</i>(), including their boolean variants and <i>setAll</i>())
+     *  maintain a running count of the set bits, and <i>cardinality</i>() and
+     *  <i>isEmpty</i>() return it in constant time, even while bits keep being
+     *  changed. The operations on ranges or on whole sets still invalidate
+     *  the count, and the next call of <i>cardinality</i>() recomputes it by a
+     *  full scan, after which it is maintained again.
+     *  <p>
+     *  The tracking costs a read of the changed word per single bit operation,
+     *  and is off by default.
+     *
+     * @param       track if true, maintain the exact cardinality
+     * @see         #cardinality()
+     */
+    public void trackCardinality(boolean track)
+    {
+        trackCardinality = track;
+        if (!track)
+            cache.liveCardinality = -1;
+        else if (cache.liveCardinality < 0)
+        {
+            statisticsUpdate();
+            cache.liveCardinality = cache.cardinality;
+        }
+    }
+
     /**
      *  Performs a logical <b>XOR</b> of the addressed target bit with the
      *  argument value. This bit set is modified so that the addressed bit has the
@@ -1532,6 +2333,7 @@ public class SparseBitSet implements Cloneable, Serializable
     protected final void constructorHelper()
     {
         spare = new long[LENGTH3];
+        scratch = new long[LENGTH3];
         cache = new Cache();
         andStrategy = new AndStrategy();
         andNotStrategy = new AndNotStrategy();
@@ -1559,12 +2361,95 @@ public class SparseBitSet implements Cloneable, Serializable
         final int aLength = bits.length;
         if (start < aLength)
         {
+            if (bits == shared)
+                bits = bits.clone(); //  The snapshot keeps its entries
             for (int w = start; w != aLength; ++w)
                 bits[w] = null;
             cache.hash = 0; //  Invalidate size, etc., values
         }
     }
 
+    /**
+     *  Gives the areas from the given start to the end of the set array, along
+     *  with their blocks, back to the block pool, if there is one. The entries
+     *  are left as they are, and must be made null by the caller.
+     *
+     * @param       start word index at which to start (inclusive)
+     * @see         #setBlockPool(BlockPool)
+     */
+    protected final void recycle(int start)
+    {
+        if (pool == null || shared != null)
+            return;
+        for (int w = start; w < bits.length; ++w)
+            pool.recycle(bits[w]);
+    }
+
+    /**
+     *  Gives a dropped level2 area, and its blocks, back to the block pool, if
+     *  there is one and the area is not shared with a snapshot.
+     *
+     * @param       a2 the area, or null
+     */
+    private void recycle(long[][] a2)
+    {
+        if (pool != null && shared == null)
+            pool.recycle(a2);
+    }
+
+    /**
+     *  Gives a dropped level3 block back to the block pool, if there is one and
+     *  the block is not shared with a snapshot. Array containers, and the spare
+     *  block, are not taken.
+     *
+     * @param       a3 the block, or null
+     */
+    private void recycle(long[] a3)
+    {
+        if (pool != null && shared == null && a3 != spare)
+            pool.recycle(a3);
+    }
+
+    /**
+     *  Returns an empty level2 area, taken from the block pool if there is one.
+     *
+     * @return      an area of nulls
+     */
+    private long[][] newArea()
+    {
+        return pool == null ? new long[LENGTH2][] : pool.area();
+    }
+
+    /**
+     *  Returns a level3 block of zero words, taken from the block pool if there
+     *  is one.
+     *
+     * @return      a block of zero words
+     */
+    private long[] newBlock()
+    {
+        return pool == null ? new long[LENGTH3] : pool.block();
+    }
+
+    /**
+     *  Adds a position, which must not already be present, to an array
+     *  container, as does <i>containerAdd</i>(), but takes the block replacing a
+     *  full container of the maximum length from the block pool.
+     *
+     * @param       a3 an array container
+     * @param       p the position to be added
+     * @return      the container (or the block) now holding the position
+     */
+    private long[] addPosition(long[] a3, int p)
+    {
+        if (pool == null || a3.length != MAX_ARRAY_LENGTH3
+                || containerSize(a3) != MAX_ARRAY_LENGTH3 << 2)
+            return containerAdd(a3, p);
+        final long[] block = inflate(a3, pool.block());
+        block[p >> SHIFT3] |= 1L << p;
+        return block;
+    }
+
     /**
      *  Resize the bit array. Moves the entries in the the bits array of this
      *  SparseBitSet into an array whose size (which may be larger or smaller) is
@@ -1597,7 +2482,10 @@ public class SparseBitSet implements Cloneable, Serializable
             {
                 /*  If it exists, copy old array to the new array. */
                 System.arraycopy(bits, 0, temp, 0, Math.min(aLength1, newSize));
-                nullify(0); //  Don't leave unused pointers around. */
+                if (bits != shared)
+                    nullify(0); //  Don't leave unused pointers around. */
+                else
+                    cache.hash = 0; //  Invalidate size, etc., values
             }
             bits = temp; //  Set new array as the set array
             bitsLength = //  Index of last possible bit, plus one.
@@ -1605,6 +2493,330 @@ public class SparseBitSet implements Cloneable, Serializable
         }
     }
 
+    //==============================================================================
+    //  Level3 array containers
+    //==============================================================================
+
+    /**
+     *  Creates an array container holding just the given position.
+     *
+     * @param       p the position of a bit within its level3 block
+     * @return      the new array container
+     */
+    protected static final long[] containerOf(int p)
+    {
+        return new long[] { ~(long) EMPTY_POSITION | p };
+    }
+
+    /**
+     *  Returns the n-th position held by an array container, or EMPTY_POSITION
+     *  if the container holds fewer positions.
+     *
+     * @param       a3 an array container
+     * @param       n the index of the position
+     * @return      the position
+     */
+    protected static final int position(long[] a3, int n)
+    {
+        return (int) (a3[n >> 2] >>> ((n & 3) << 4)) & EMPTY_POSITION;
+    }
+
+    /**
+     *  Stores the n-th position of an array container.
+     *
+     * @param       a3 an array container
+     * @param       n the index of the position
+     * @param       p the position (or EMPTY_POSITION)
+     */
+    private static void setPosition(long[] a3, int n, int p)
+    {
+        final int shift = (n & 3) << 4;
+        a3[n >> 2] = a3[n >> 2] & ~((long) EMPTY_POSITION << shift) | (long) p << shift;
+    }
+
+    /**
+     *  Returns the number of positions held by an array container.
+     *
+     * @param       a3 an array container
+     * @return      the number of positions
+     */
+    protected static final int containerSize(long[] a3)
+    {
+        int n = a3.length << 2;
+        while (n != 0 && position(a3, n - 1) == EMPTY_POSITION)
+            --n;
+        return n;
+    }
+
+    /**
+     *  Binary search for a position in an array container. The unused positions
+     *  hold EMPTY_POSITION, which sorts after all the actual positions, so the
+     *  whole container can be searched.
+     *
+     * @param       a3 an array container
+     * @param       p the position to look for
+     * @return      the index of the position, if present; otherwise
+     *              <code>(-(insertion point) - 1)</code>
+     */
+    protected static final int containerIndexOf(long[] a3, int p)
+    {
+        int low = 0;
+        int high = (a3.length << 2) - 1;
+        while (low <= high)
+        {
+            final int mid = (low + high) >>> 1;
+            final int midPosition = position(a3, mid);
+            if (midPosition < p)
+                low = mid + 1;
+            else if (midPosition > p)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     *  Adds a position, which must not already be present, to an array
+     *  container. A full container is replaced by one twice as long, or, when
+     *  it is already of the maximum length, by a block.
+     *
+     * @param       a3 an array container
+     * @param       p the position to be added
+     * @return      the container (or the block) now holding the position
+     */
+    protected static final long[] containerAdd(long[] a3, int p)
+    {
+        final int size = containerSize(a3);
+        if (size == a3.length << 2)
+        {
+            if (a3.length == MAX_ARRAY_LENGTH3)
+            {
+                final long[] block = inflate(a3, new long[LENGTH3]);
+                block[p >> SHIFT3] |= 1L << p;
+                return block;
+            }
+            final long[] grown = new long[a3.length << 1];
+            Arrays.fill(grown, ~0L); //  All positions unused
+            System.arraycopy(a3, 0, grown, 0, a3.length);
+            a3 = grown;
+        }
+        /*  Move the greater positions up by one, to make room for the new one. */
+        int n = size;
+        for (int q; n != 0 && (q = position(a3, n - 1)) > p; --n)
+            setPosition(a3, n, q);
+        setPosition(a3, n, p);
+        return a3;
+    }
+
+    /**
+     *  Removes a position from an array container, if present. The container
+     *  keeps its length, even if it becomes empty.
+     *
+     * @param       a3 an array container
+     * @param       p the position to be removed
+     * @return      true if the position was present
+     */
+    protected static final boolean containerRemove(long[] a3, int p)
+    {
+        int n = containerIndexOf(a3, p);
+        if (n < 0)
+            return false;
+        final int last = (a3.length << 2) - 1;
+        for (; n != last; ++n)
+            setPosition(a3, n, position(a3, n + 1));
+        setPosition(a3, last, EMPTY_POSITION);
+        return true;
+    }
+
+    /**
+     *  Expands an array container into a block.
+     *
+     * @param       a3 an array container
+     * @param       block the block to receive the bits (all of its words are
+     *              overwritten)
+     * @return      the given block
+     */
+    protected static final long[] inflate(long[] a3, long[] block)
+    {
+        Arrays.fill(block, 0L);
+        final int limit = a3.length << 2;
+        int p;
+        for (int n = 0; n != limit && (p = position(a3, n)) != EMPTY_POSITION; ++n)
+            block[p >> SHIFT3] |= 1L << p;
+        return block;
+    }
+
+    /**
+     *  Returns the smaller form of a level3 block: an array container if the
+     *  block holds at most MAX_ARRAY_SIZE3 bits, otherwise the block itself.
+     *
+     * @param       a3 a level3 block or array container
+     * @return      the given block, or a new array container with the same bits
+     */
+    protected static final long[] compactBlock(long[] a3)
+    {
+        if (a3.length != LENGTH3)
+            return a3;
+        int size = 0;
+        for (long word : a3)
+            size += Long.bitCount(word);
+        if (size > MAX_ARRAY_SIZE3)
+            return a3;
+        int length = 1;
+        while (length << 2 < size)
+            length <<= 1;
+        final long[] result = new long[length];
+        Arrays.fill(result, ~0L); //  All positions unused
+        int n = 0;
+        for (int w3 = 0; w3 != LENGTH3; ++w3)
+            for (long word = a3[w3]; word != 0L; word &= word - 1)
+                setPosition(result, n++, (w3 << SHIFT3)
+                        + Long.numberOfTrailingZeros(word));
+        return result;
+    }
+
+    /**
+     *  Returns a word of a level3 block, whatever its form.
+     *
+     * @param       a3 a level3 block or array container
+     * @param       w3 the index of the word within the block
+     * @return      the word
+     */
+    protected static final long blockWord(long[] a3, int w3)
+    {
+        if (a3.length == LENGTH3)
+            return a3[w3];
+        long word = 0L;
+        final int limit = a3.length << 2;
+        int p;
+        for (int n = 0; n != limit && (p = position(a3, n)) >> SHIFT3 <= w3; ++n)
+            if (p >> SHIFT3 == w3)
+                word |= 1L << p;
+        return word;
+    }
+
+    /**
+     *  Finds the first bit set in a level3 block, whatever its form, at or
+     *  after the given position.
+     *
+     * @param       a3 a level3 block or array container
+     * @param       p the position within the block to start from (inclusive)
+     * @return      the position of the bit, or -1 if there is no such bit
+     */
+    protected static final int nextSetInBlock(long[] a3, int p)
+    {
+        if (a3.length != LENGTH3)
+        {
+            int n = containerIndexOf(a3, p);
+            if (n < 0)
+                n = -n - 1;
+            final int q = n == a3.length << 2 ? EMPTY_POSITION : position(a3, n);
+            return q == EMPTY_POSITION ? -1 : q;
+        }
+        int w3 = p >> SHIFT3;
+        long word = a3[w3] & (~0L << p);
+        while (word == 0L)
+        {
+            if (++w3 == LENGTH3)
+                return -1;
+            word = a3[w3];
+        }
+        return (w3 << SHIFT3) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     *  Check whether a level3 block, whatever its form, has no bits set.
+     *
+     * @param       a3 a level3 block or array container
+     * @return      true if no bit of the block is set
+     */
+    protected static final boolean isEmptyBlock(long[] a3)
+    {
+        if (a3.length != LENGTH3)
+            return position(a3, 0) == EMPTY_POSITION;
+        for (long word : a3)
+            if (word != 0L)
+                return false;
+        return true;
+    }
+
+    /**
+     *  Stores a block built up by <i>orAll</i>() or <i>andAll</i>() in the
+     *  given level2 area, in its smaller form, and returns a cleared block for
+     *  building the next one. The given block is itself stored when it is kept
+     *  as a bitmap, so that each block of the result is allocated just once.
+     *
+     * @param       a2 the level2 area of the result
+     * @param       w2 the index of the block within the area
+     * @param       block the block holding the bits
+     * @return      a block of zero words
+     */
+    private static long[] keepBlock(long[][] a2, int w2, long[] block)
+    {
+        final long[] a3 = compactBlock(block);
+        a2[w2] = a3;
+        if (a3 == block)
+            return new long[LENGTH3];
+        Arrays.fill(block, 0L);
+        return block;
+    }
+
+    /**
+     *  Counts the bits set in both of two level3 blocks, whatever their form,
+     *  without creating any intermediate block.
+     *
+     * @param       a3 a level3 block or array container
+     * @param       b3 another level3 block or array container
+     * @return      the number of bits set in both blocks
+     */
+    protected static final int andCardinality(long[] a3, long[] b3)
+    {
+        int count = 0;
+        if (a3.length == LENGTH3 && b3.length == LENGTH3)
+        {
+            for (int w3 = 0; w3 != LENGTH3; ++w3)
+                count += Long.bitCount(a3[w3] & b3[w3]);
+            return count;
+        }
+        if (a3.length == LENGTH3)
+        { //  Make a3 the array container
+            final long[] t = a3;
+            a3 = b3;
+            b3 = t;
+        }
+        final int limitA = a3.length << 2;
+        int p;
+        if (b3.length == LENGTH3)
+        { //  Look up each position of the container in the block
+            for (int n = 0; n != limitA && (p = position(a3, n)) != EMPTY_POSITION; ++n)
+                if ((b3[p >> SHIFT3] & (1L << p)) != 0L)
+                    ++count;
+            return count;
+        }
+        /*  Both are array containers: merge the two sorted position lists. */
+        final int limitB = b3.length << 2;
+        int m = 0;
+        int n = 0;
+        p = position(a3, 0);
+        int q = position(b3, 0);
+        while (p != EMPTY_POSITION && q != EMPTY_POSITION)
+        {
+            if (p <= q)
+            {
+                if (p == q)
+                {
+                    ++count;
+                    q = ++m == limitB ? EMPTY_POSITION : position(b3, m);
+                }
+                p = ++n == limitA ? EMPTY_POSITION : position(a3, n);
+            }
+            else
+                q = ++m == limitB ? EMPTY_POSITION : position(b3, m);
+        }
+        return count;
+    }
+
     /**
      *  Scans over the bit set (and a second bit set if part of the operation) are
      *  all performed by this method. The properties and the operation executed
@@ -1647,10 +2859,17 @@ public class SparseBitSet implements Cloneable, Serializable
 
         /*  Get the values of all the short-cut options. */
         final int properties = op.properties();
+        if (shared != null && (properties & AbstractStrategy.READ_ONLY) == 0)
+            unshareAll(); //  The strategy may write anywhere in the range
         final boolean f_op_f_eq_f = (properties & AbstractStrategy.F_OP_F_EQ_F) != 0;
         final boolean f_op_x_eq_f = (properties & AbstractStrategy.F_OP_X_EQ_F) != 0;
         final boolean x_op_f_eq_f = (properties & AbstractStrategy.X_OP_F_EQ_F) != 0;
         final boolean x_op_f_eq_x = (properties & AbstractStrategy.X_OP_F_EQ_X) != 0;
+        final boolean read_only = (properties & AbstractStrategy.READ_ONLY) != 0;
+        /*  While arrays are shared with a snapshot, a read-only scan of either
+            of them leaves the empty blocks and areas in place: the other one
+            may be read, or copied, by another thread at the same time. */
+        final boolean keepEmpty = read_only && shared != null;
 
         /*  Index of the current word, and mask for the first word,
             to be processed in the bit set. */
@@ -1706,8 +2925,11 @@ public class SparseBitSet implements Cloneable, Serializable
                     || !haveA2 && f_op_x_eq_f || !haveB2 && x_op_f_eq_f)
                     && notFirstBlock && u1 != v1)
             {//nested if!
-                if (u1 < aLength1)
+                if (u1 < aLength1 && !keepEmpty)
+                {
+                    recycle(a1[u1]);
                     a1[u1] = null;
+                }
             }
             else
             {
@@ -1732,8 +2954,11 @@ public class SparseBitSet implements Cloneable, Serializable
                             && notFirstBlock && notLastBlock)
                     {
                         /*  Do not need level3 block, so remove it, and move on. */
-                        if (haveA2)
+                        if (haveA2 && !keepEmpty)
+                        {
+                            recycle(a2[u2]);
                             a2[u2] = null;
+                        }
                         u3 = 0;
                     }
                     else
@@ -1741,14 +2966,29 @@ public class SparseBitSet implements Cloneable, Serializable
                         /*  So what is needed is the level3 block. */
                         final int base3 = a3Block << SHIFT2;
                         final int limit3 = (notLastBlock ? LENGTH3 : v3);
+                        /*  Whether the a block is left as it is, whatever its
+                            form, because the b block is null. */
+                        final boolean keepA3 = x_op_f_eq_x && !haveB3
+                                && notFirstBlock && notLastBlock;
+                        /*  Array containers are presented to the strategy as
+                            blocks: an a container is expanded into the spare
+                            block, and a b container into the scratch block. */
+                        boolean inflated = false;
                         if (!haveA3)
                             a3 = spare;
+                        else if (a3.length != LENGTH3 && !keepA3)
+                        {
+                            a3 = inflate(a3, spare);
+                            inflated = true;
+                        }
                         if (!haveB3)
                             b3 = ZERO_BLOCK;
+                        else if (b3.length != LENGTH3)
+                            b3 = inflate(b3, scratch);
                         boolean isZero;
                         if (notFirstBlock && notLastBlock)
-                            if (x_op_f_eq_x && !haveB3)
-                                isZero = op.isZeroBlock(a3);
+                            if (keepA3)
+                                isZero = isEmptyBlock(a3);
                                 // b block is null, just check a block
                             else
                                 isZero = op.block(base3, 0, LENGTH3, a3, b3);
@@ -1789,13 +3029,26 @@ public class SparseBitSet implements Cloneable, Serializable
                         {// nested if!
                             /*  If there is an level 2 area make the entry for this
                                 level3 block be a null (i.e., remove any a3 block ). */
-                            if (haveA2)
+                            if (haveA2 && !keepEmpty)
+                            {
+                                recycle(a2[u2]);
                                 a2[u2] = null;
+                            }
+                            if (inflated) //  Strategies may leave it unchanged
+                                Arrays.fill(spare, 0L);
+                        }
+                        else if (inflated && read_only)
+                        {
+                            /*  The container is left in place, and the spare
+                                block is made empty again. */
+                            Arrays.fill(spare, 0L);
+                            ++a3CountLocal; // Count the level 3 block
                         }
                         else
                         {
                             /*  If the a3 block used was the spare block, put it
-                                into current level2 area; get a new spare block. */
+                                into current level2 area; get a new spare block,
+                                unless the block was put there as a container. */
                             if (a3 == spare)
                             {
                                 if (i >= bitsLength) //Check that the set is large
@@ -1806,15 +3059,24 @@ public class SparseBitSet implements Cloneable, Serializable
                                 }
                                 if (a2 == null) //  Ensure a level 2 area
                                 {
-                                    a1[u1] = a2 = new long[LENGTH2][];
+                                    a1[u1] = a2 = newArea();
                                     haveA2 = true; //  Ensure know level2 not empty
                                 }
-                                a2[u2] = a3; //  Insert the level3 block
-                                spare = new long[LENGTH3]; // Replace the spare
+                                a2[u2] = compactBlock(a3); //  Insert the level3 block
+                                if (a2[u2] == a3)
+                                    spare = newBlock(); // Replace the spare
+                                else
+                                    Arrays.fill(spare, 0L); // Reuse the spare
+                            }
+                            else if (!read_only && !keepA3)
+                            {
+                                a2[u2] = compactBlock(a3); // Changed, may be sparse
+                                if (a2[u2] != a3)
+                                    recycle(a3);
                             }
                             ++a3CountLocal; // Count the level 3 block
                         }
-                        a2IsEmpty &= !(haveA2 && a2[u2] != null);
+                        a2IsEmpty &= isZero || !(haveA2 && a2[u2] != null);
                     } //  Keep track of level 2 usage
                     ++u2;
                     u3 = 0;
@@ -1822,7 +3084,13 @@ public class SparseBitSet implements Cloneable, Serializable
                 /*  If the loop finishes without completing the level 2, it may
                     be left with a reference but still be all null--this is OK. */
                 if (u2 == LENGTH2 && a2IsEmpty && u1 < aLength1)
-                    a1[u1] = null;
+                {
+                    if (!keepEmpty)
+                    {
+                        recycle(a1[u1]);
+                        a1[u1] = null;
+                    }
+                }
                 else
                     ++a2CountLocal; //  Count level 2 areas
             }
@@ -1853,6 +3121,533 @@ public class SparseBitSet implements Cloneable, Serializable
         setScanner(0, bitsLength, null, updateStrategy);
     }
 
+    /**
+     *  Builds the index used by <i>rank</i>() and <i>select</i>(), unless it
+     *  is up-to-date: the numbers of the non-empty level3 blocks, in order,
+     *  and the count of the set bits in the blocks before each of them. The
+     *  index is dropped by the <i>statisticsUpdate</i>() method, so that it
+     *  is stale whenever the <i>hash</i> value is.
+     */
+    protected final void rankUpdate()
+    {
+        statisticsUpdate();
+        if (cache.rankBlocks != null)
+            return;
+        final long[][][] a1 = bits;
+        int n = 0;
+        for (long[][] a2 : a1)
+            if (a2 != null)
+                for (long[] a3 : a2)
+                    if (a3 != null && !isEmptyBlock(a3))
+                        ++n;
+        final int[] blocks = new int[n];
+        final int[] counts = new int[n + 1];
+        n = 0;
+        int count = 0;
+        for (int w1 = 0; w1 != a1.length; ++w1)
+        {
+            final long[][] a2 = a1[w1];
+            if (a2 == null)
+                continue;
+            for (int w2 = 0; w2 != LENGTH2; ++w2)
+            {
+                final long[] a3 = a2[w2];
+                if (a3 == null || isEmptyBlock(a3))
+                    continue;
+                blocks[n] = (w1 << LEVEL2) + w2;
+                counts[n++] = count;
+                if (a3.length != LENGTH3)
+                    count += containerSize(a3);
+                else
+                    for (long word : a3)
+                        count += Long.bitCount(word);
+            }
+        }
+        counts[n] = count;
+        cache.rankCounts = counts;
+        cache.rankBlocks = blocks;
+    }
+
+    //==============================================================================
+    //  Iteration
+    //==============================================================================
+
+    /**
+     *  Iterates over the set bits, keeping the level1 and level2 entries and the
+     *  word reached. The remaining bits of the current word are held in
+     *  <i>word</i>, and taken off one at a time with
+     *  <code>Long.numberOfTrailingZeros</code>. Each position of an array
+     *  container is presented as a word holding just that bit.
+     */
+    protected class SetBitIterator implements PrimitiveIterator.OfInt
+    {
+        /**
+         *  The level1 index at which the iteration stops
+         */
+        private final int end1;
+
+        /**
+         *  The level1 index of the current block
+         */
+        private int w1;
+
+        /**
+         *  The level2 index of the current block
+         */
+        private int w2;
+
+        /**
+         *  The level2 area of the current block, null when the iterator must
+         *  move on to the next level1 entry
+         */
+        private long[][] a2;
+
+        /**
+         *  The current block, null when the iterator must move on to the next
+         *  level2 entry
+         */
+        private long[] a3;
+
+        /**
+         *  Index of the next word of a bitmap, or of the next position of an
+         *  array container, in the current block
+         */
+        private int n;
+
+        /**
+         *  Index of the first bit of the current block
+         */
+        private int blockBase;
+
+        /**
+         *  Index of the first bit of the current word
+         */
+        private int base;
+
+        /**
+         *  The bits of the current word not yet returned
+         */
+        private long word;
+
+        /**
+         *  Creates an iterator starting at the given bit (inclusive).
+         *
+         * @param       i the index of the first bit to be considered
+         * @param       end1 the level1 index at which to stop (exclusive)
+         */
+        protected SetBitIterator(int i, int end1)
+        {
+            this.end1 = end1;
+            final int w = i >> SHIFT3;
+            w1 = w >> SHIFT1;
+            w2 = (w >> SHIFT2) & MASK2;
+            if (w1 >= bits.length || w1 >= end1 || (a2 = bits[w1]) == null
+                    || (a3 = a2[w2]) == null)
+                return;
+            blockBase = ((w1 << SHIFT1) + (w2 << SHIFT2)) << SHIFT3;
+            if (a3.length == LENGTH3)
+            {
+                n = w & MASK3;
+                base = blockBase + (n << SHIFT3);
+                word = a3[n++] & (~0L << i);
+            }
+            else
+            {
+                n = containerIndexOf(a3, i & MASK_BLOCK);
+                if (n < 0)
+                    n = -n - 1;
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return word != 0L || nextWord();
+        }
+
+        @Override
+        public int nextInt()
+        {
+            if (word == 0L && !nextWord())
+                throw new NoSuchElementException();
+            final int i = base + Long.numberOfTrailingZeros(word);
+            word &= word - 1L;
+            return i;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action)
+        {
+            while (word != 0L || nextWord())
+            {
+                do
+                {
+                    action.accept(base + Long.numberOfTrailingZeros(word));
+                    word &= word - 1L;
+                }
+                while (word != 0L);
+            }
+        }
+
+        /**
+         *  Copies the indices of the following set bits into the buffer, until
+         *  it is full or there are no more set bits.
+         *
+         * @param       buffer the array receiving the indices, from its start
+         * @return      the number of indices copied
+         */
+        protected int drain(int[] buffer)
+        {
+            final int length = buffer.length;
+            int count = 0;
+            while (count != length && (word != 0L || nextWord()))
+            {
+                do
+                {
+                    buffer[count++] = base + Long.numberOfTrailingZeros(word);
+                    word &= word - 1L;
+                }
+                while (word != 0L && count != length);
+            }
+            return count;
+        }
+
+        /**
+         *  Loads the next non-zero word, moving through the blocks and the
+         *  level1 and level2 entries as needed.
+         *
+         * @return      false if there are no more set bits
+         */
+        private boolean nextWord()
+        {
+            for (;;)
+            {
+                if (a3 != null)
+                {
+                    if (a3.length == LENGTH3)
+                    {
+                        while (n != LENGTH3)
+                        {
+                            final long w = a3[n++];
+                            if (w != 0L)
+                            {
+                                base = blockBase + ((n - 1) << SHIFT3);
+                                word = w;
+                                return true;
+                            }
+                        }
+                    }
+                    else if (n != a3.length << 2)
+                    {
+                        final int p = position(a3, n++);
+                        if (p != EMPTY_POSITION)
+                        {
+                            base = blockBase + ((p >> SHIFT3) << SHIFT3);
+                            word = 1L << p;
+                            return true;
+                        }
+                    }
+                    a3 = null;
+                }
+                if (a2 == null || ++w2 == LENGTH2)
+                {
+                    do
+                    {
+                        if (++w1 >= bits.length || w1 >= end1)
+                        {
+                            a2 = null;
+                            return false;
+                        }
+                    }
+                    while ((a2 = bits[w1]) == null);
+                    w2 = 0;
+                }
+                if ((a3 = a2[w2]) != null)
+                {
+                    n = 0;
+                    blockBase = ((w1 << SHIFT1) + (w2 << SHIFT2)) << SHIFT3;
+                }
+            }
+        }
+    }
+
+    /**
+     *  Splits the set bits along the boundaries of the level1 entries, so
+     *  that each part can be traversed by a separate thread. The set is halved
+     *  by the number of its level1 entries, and the expected number of bits
+     *  of each half is in proportion to its number of level2 areas, starting
+     *  from the cardinality of the whole set. Only the spliterator covering
+     *  the whole set knows its exact size.
+     */
+    protected class SetBitSpliterator implements Spliterator.OfInt
+    {
+        /**
+         *  The first level1 index covered (inclusive)
+         */
+        private int from1;
+
+        /**
+         *  The last level1 index covered (exclusive)
+         */
+        private int to1;
+
+        /**
+         *  The number of level2 areas in the covered level1 entries
+         */
+        private int areas;
+
+        /**
+         *  The expected number of set bits in the covered level1 entries
+         */
+        private long estimate;
+
+        /**
+         *  True while the spliterator covers the whole set
+         */
+        private boolean exact;
+
+        /**
+         *  Created when the traversal starts, after which there is no split
+         */
+        private SetBitIterator iterator;
+
+        /**
+         *  Creates a spliterator over the whole set.
+         */
+        protected SetBitSpliterator()
+        {
+            this(0, bits.length, -1, cardinality());
+            exact = true;
+        }
+
+        private SetBitSpliterator(int from1, int to1, int areas, long estimate)
+        {
+            this.from1 = from1;
+            this.to1 = to1;
+            this.areas = areas < 0 ? areasIn(from1, to1) : areas;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public OfInt trySplit()
+        {
+            if (iterator != null || areas < 2)
+                return null;
+            final int middle = (from1 + to1) >>> 1;
+            final int prefixAreas = areasIn(from1, middle);
+            if (prefixAreas == 0 || prefixAreas == areas)
+            { //  All the areas are in one half: just narrow the range
+                if (prefixAreas == 0)
+                    from1 = middle;
+                else
+                    to1 = middle;
+                return trySplit();
+            }
+            final long prefixEstimate = estimate * prefixAreas / areas;
+            final SetBitSpliterator prefix = new SetBitSpliterator(from1, middle,
+                    prefixAreas, prefixEstimate);
+            from1 = middle;
+            areas -= prefixAreas;
+            estimate -= prefixEstimate;
+            exact = false;
+            return prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action)
+        {
+            if (iterator == null)
+                iterator = start();
+            if (!iterator.hasNext())
+                return false;
+            action.accept(iterator.nextInt());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action)
+        {
+            if (iterator == null)
+                iterator = start();
+            iterator.forEachRemaining(action);
+        }
+
+        @Override
+        public long estimateSize()
+        {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics()
+        {
+            return ORDERED | DISTINCT | SORTED | NONNULL | (exact ? SIZED : 0);
+        }
+
+        @Override
+        public Comparator<? super Integer> getComparator()
+        {
+            return null; //  Natural order
+        }
+
+        private SetBitIterator start()
+        {
+            return new SetBitIterator(from1 << SHIFT1 << SHIFT3, to1);
+        }
+
+        /**
+         *  Counts the level2 areas of the given level1 entries.
+         */
+        private int areasIn(int from, int to)
+        {
+            final long[][][] a1 = bits;
+            int count = 0;
+            for (int w1 = from; w1 < to; ++w1)
+                if (a1[w1] != null)
+                    ++count;
+            return count;
+        }
+    }
+
+    //==============================================================================
+    //  Parallel operations
+    //==============================================================================
+
+    /**
+     *  Applies an <b>OR</b> or an <b>AND</b> of the bit set <i>b</i> to the
+     *  level1 entries <i>from</i> (inclusive) to <i>to</i> (exclusive) of this
+     *  set. A slice longer than PARALLEL_SLICE1 is split into two halves that
+     *  run as separate tasks. Each task changes only the level1 entries of its
+     *  slice, and has its own block for expanding array containers, so the
+     *  <i>spare</i> and <i>scratch</i> blocks of the set are never used.
+     */
+    protected class SliceTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final SparseBitSet b;
+
+        private final int from;
+
+        private final int to;
+
+        private final boolean or;
+
+        protected SliceTask(SparseBitSet b, int from, int to, boolean or)
+        {
+            this.b = b;
+            this.from = from;
+            this.to = to;
+            this.or = or;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > PARALLEL_SLICE1)
+            {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new SliceTask(b, from, middle, or),
+                        new SliceTask(b, middle, to, or));
+                return;
+            }
+            final long[] block = new long[LENGTH3];
+            final long[][][] b1 = b.bits;
+            for (int w1 = from; w1 != to; ++w1)
+            {
+                if (or)
+                    orArea(w1, b1[w1]);
+                else
+                    andArea(w1, w1 < b1.length ? b1[w1] : null, block);
+            }
+        }
+
+        /**
+         *  ORs the level2 area of <i>b</i> into the level1 entry w1 of this set.
+         */
+        private void orArea(int w1, long[][] b2)
+        {
+            if (b2 == null)
+                return;
+            long[][] a2 = bits[w1];
+            for (int w2 = 0; w2 != LENGTH2; ++w2)
+            {
+                final long[] b3 = b2[w2];
+                if (b3 == null || isEmptyBlock(b3))
+                    continue;
+                if (a2 == null)
+                    a2 = bits[w1] = new long[LENGTH2][];
+                final long[] a3 = a2[w2];
+                if (a3 == null)
+                {
+                    a2[w2] = b3.clone();
+                    continue;
+                }
+                /*  OR into a bitmap; a container is first expanded into a new
+                    block, as the result may not fit into it. */
+                final long[] result = a3.length == LENGTH3
+                        ? a3 : inflate(a3, new long[LENGTH3]);
+                if (b3.length == LENGTH3)
+                    for (int w3 = 0; w3 != LENGTH3; ++w3)
+                        result[w3] |= b3[w3];
+                else
+                {
+                    final int limit = b3.length << 2;
+                    int p;
+                    for (int n = 0; n != limit && (p = position(b3, n)) != EMPTY_POSITION; ++n)
+                        result[p >> SHIFT3] |= 1L << p;
+                }
+                if (result != a3)
+                    a2[w2] = compactBlock(result);
+            }
+        }
+
+        /**
+         *  ANDs the level2 area of <i>b</i> into the level1 entry w1 of this
+         *  set, dropping the blocks, and the area, that become empty.
+         */
+        private void andArea(int w1, long[][] b2, long[] block)
+        {
+            final long[][] a2 = bits[w1];
+            if (a2 == null)
+                return;
+            if (b2 == null)
+            {
+                bits[w1] = null;
+                return;
+            }
+            boolean isZero = true; //  Presumption
+            for (int w2 = 0; w2 != LENGTH2; ++w2)
+            {
+                final long[] a3 = a2[w2];
+                if (a3 == null)
+                    continue;
+                final long[] b3 = b2[w2];
+                if (b3 == null)
+                {
+                    a2[w2] = null;
+                    continue;
+                }
+                final long[] result = a3.length == LENGTH3
+                        ? a3 : inflate(a3, new long[LENGTH3]);
+                final long[] mask = b3.length == LENGTH3
+                        ? b3 : inflate(b3, block);
+                boolean isEmpty = true; //  Presumption
+                for (int w3 = 0; w3 != LENGTH3; ++w3)
+                    isEmpty &= (result[w3] &= mask[w3]) == 0L;
+                if (isEmpty)
+                    a2[w2] = null;
+                else
+                {
+                    a2[w2] = compactBlock(result);
+                    isZero = false;
+                }
+            }
+            if (isZero)
+                bits[w1] = null;
+        }
+    }
+
     //==============================================================================
     //  Serialization/Deserialization methods
     //==============================================================================
@@ -1892,6 +3687,7 @@ public class SparseBitSet implements Cloneable, Serializable
         s.writeInt(count);
         final long[][][] a1 = bits;
         final int aLength1 = a1.length;
+        final long[] block = new long[LENGTH3]; //  For reading array containers
         long[][] a2;
         long[] a3;
         long word;
@@ -1900,6 +3696,8 @@ public class SparseBitSet implements Cloneable, Serializable
                 for (int w2 = 0; w2 != LENGTH2; ++w2)
                     if ((a3 = a2[w2]) != null)
                     {
+                        if (a3.length != LENGTH3)
+                            a3 = inflate(a3, block);
                         final int base = (w1 << SHIFT1) + (w2 << SHIFT2);
                         for (int w3 = 0; w3 != LENGTH3; ++w3)
                             if ((word = a3[w3]) != 0)
@@ -1954,10 +3752,16 @@ public class SparseBitSet implements Cloneable, Serializable
             final long word = s.readLong();
             if ((a2 = bits[w1]) == null)
                 a2 = bits[w1] = new long[LENGTH2][];
-            if ((a3 = a2[w2]) == null)
-                a3 = a2[w2] = new long[LENGTH3];
+            if ((a3 = a2[w2]) == null || a3.length != LENGTH3)
+                a3 = a2[w2] = new long[LENGTH3]; //  Containers are rebuilt below
             a3[w3] = word;
         }
+        /*  Replace the blocks holding only a few bits by array containers. */
+        for (long[][] area : bits)
+            if (area != null)
+                for (int w2 = 0; w2 != LENGTH2; ++w2)
+                    if (area[w2] != null)
+                        area[w2] = compactBlock(area[w2]);
         /* Ensure all the pieces are set up for set scanning. */
         constructorHelper();
         statisticsUpdate();
@@ -2099,6 +3903,31 @@ public class SparseBitSet implements Cloneable, Serializable
          *  <i>hash</i> value is must be zero for all values to be updated.
          */
         protected  int a3Count;
+
+        /**
+         *  <i>liveCardinality</i> is the exact count of the set bits while the
+         *  cardinality is tracked (see <i>trackCardinality</i>()), and is
+         *  negative otherwise. Unlike the other values, it is kept up-to-date by
+         *  the single bit operations, and does not depend on the <i>hash</i>
+         *  value. It is made negative by operations on ranges and whole sets,
+         *  and set again by the <i>statisticsUpdate</i>() method.
+         */
+        protected  int liveCardinality = -1;
+
+        /**
+         *  <i>rankBlocks</i> holds the numbers of the non-empty level3 blocks,
+         *  in ascending order, for <i>rank</i>() and <i>select</i>(). It is
+         *  built by the <i>rankUpdate</i>() method, and made null by the
+         *  <i>statisticsUpdate</i>() method.
+         */
+        protected transient int[] rankBlocks;
+
+        /**
+         *  <i>rankCounts</i> holds, for each block of <i>rankBlocks</i>, the
+         *  number of set bits in the blocks before it, followed by the
+         *  cardinality of the set. It is built along with <i>rankBlocks</i>.
+         */
+        protected transient int[] rankCounts;
     }
 
     //=============================================================================
@@ -2154,6 +3983,14 @@ public class SparseBitSet implements Cloneable, Serializable
          */
         static final int X_OP_F_EQ_X = 0x8;
 
+        /** If the operation never changes the values in this set, then this
+         *  property is required. The level3 array containers of this set are then
+         *  left as they are, rather than being replaced by the blocks produced by
+         *  the operation. For example, this is true for 'equals', 'intersects',
+         *  and the statistics update.
+         */
+        static final int READ_ONLY = 0x10;
+
         /**
          *  Properties of this strategy.
          *
@@ -2275,6 +4112,7 @@ public class SparseBitSet implements Cloneable, Serializable
             if (b == null)
                 throw new NullPointerException();
             cache.hash = 0;
+            cache.liveCardinality = -1;
         }
 
         @Override
@@ -2331,6 +4169,7 @@ public class SparseBitSet implements Cloneable, Serializable
             if (b == null)
                 throw new NullPointerException();
             cache.hash = 0;
+            cache.liveCardinality = -1;
         }
 
         @Override
@@ -2374,6 +4213,7 @@ public class SparseBitSet implements Cloneable, Serializable
         protected void start(SparseBitSet b)
         {
             cache.hash = 0;
+            cache.liveCardinality = -1;
         }
 
         @Override
@@ -2417,6 +4257,7 @@ public class SparseBitSet implements Cloneable, Serializable
         protected void start(SparseBitSet b)
         {
             cache.hash = 0;
+            cache.liveCardinality = -1;
         }
 
         @Override
@@ -2457,7 +4298,7 @@ public class SparseBitSet implements Cloneable, Serializable
         //  EqualsStrategy
         protected int properties()
         {
-            return F_OP_F_EQ_F;
+            return F_OP_F_EQ_F + READ_ONLY;
         }
 
         @Override
@@ -2519,6 +4360,7 @@ public class SparseBitSet implements Cloneable, Serializable
         protected void start(SparseBitSet b)
         {
             cache.hash = 0;
+            cache.liveCardinality = -1;
         }
 
         @Override
@@ -2564,7 +4406,7 @@ public class SparseBitSet implements Cloneable, Serializable
         //  IntersectsStrategy
         protected int properties()
         {
-            return F_OP_F_EQ_F + F_OP_X_EQ_F;
+            return F_OP_F_EQ_F + F_OP_X_EQ_F + READ_ONLY;
         }
 
         @Override
@@ -2632,6 +4474,7 @@ public class SparseBitSet implements Cloneable, Serializable
             if (b == null)
                 throw new NullPointerException();
             cache.hash = 0;
+            cache.liveCardinality = -1;
         }
 
         @Override
@@ -2677,6 +4520,7 @@ public class SparseBitSet implements Cloneable, Serializable
         protected void start(SparseBitSet b)
         {
             cache.hash = 0;
+            cache.liveCardinality = -1;
         }
 
         @Override
@@ -2766,7 +4610,7 @@ public class SparseBitSet implements Cloneable, Serializable
         //  UpdateStrategy
         protected int properties()
         {
-            return F_OP_F_EQ_F + F_OP_X_EQ_F;
+            return F_OP_F_EQ_F + F_OP_X_EQ_F + READ_ONLY;
         }
 
         /**
@@ -2827,7 +4671,11 @@ public class SparseBitSet implements Cloneable, Serializable
             cache.length = (wMax + 1) * LENGTH4 - Long.numberOfLeadingZeros(wordMax);
             cache.size = cache.length - wMin * LENGTH4
                     - Long.numberOfTrailingZeros(wordMin);
-            cache.hash = (int) ((hash >> Integer.SIZE) ^ hash);
+            final int h = (int) ((hash >> Integer.SIZE) ^ hash);
+            cache.hash = h == 0 ? 1 : h; //  Zero would mean "stale"
+            cache.liveCardinality = trackCardinality ? cardinality : -1;
+            cache.rankBlocks = null; //  Rebuilt by rankUpdate()
+            cache.rankCounts = null;
         }
 
         /**
@@ -2890,6 +4738,7 @@ public class SparseBitSet implements Cloneable, Serializable
             if (b == null)
                 throw new NullPointerException();
             cache.hash = 0;
+            cache.liveCardinality = -1;
         }
 
         @Override
@@ -0,0 +1,168 @@
+package algos.hll;
+
+import algos.utils.HashUtils;
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A HyperLogLog sketch with the same registers as {@link DenseHyperLogLog}, which may be updated by many threads at
+ * once without external synchronization, so parallel ingestion can offer its hashes to one shared sketch instead of
+ * merging one sketch per thread.
+ * <p>
+ * The registers are packed by 8 into the words of an {@link AtomicLongArray}, one byte each. A register only ever
+ * increases, so an update is a CAS-max loop on its word: it reads the word, gives up if the register already holds
+ * the rank or more, and otherwise tries to store the rank until it wins or another thread stores a larger one. Once
+ * the sketch has seen enough values most offers are plain reads, which don't contend. Merges do the same for whole
+ * words: a rank is below 128, so the byte-wise max of two words is a subtraction which can't borrow across bytes, and
+ * a merge takes one CAS for 8 registers.
+ * <p>
+ * {@link #cardinality()} and {@link #toDenseHyperLogLog()} reflect all updates completed before the call; while
+ * updates are running they may miss the in-flight ones.
+ */
+public class ConcurrentHyperLogLog {
+
+    /* the high bit of each byte */
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final int p;
+    private final AtomicLongArray registers;
+
+    public ConcurrentHyperLogLog() {
+        this(DenseHyperLogLog.DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param p the number of hash bits selecting a register, see {@link DenseHyperLogLog#DenseHyperLogLog(int)}
+     */
+    public ConcurrentHyperLogLog(int p) {
+        if (p < DenseHyperLogLog.MIN_PRECISION || p > DenseHyperLogLog.MAX_PRECISION) {
+            throw new IllegalArgumentException("p must be from " + DenseHyperLogLog.MIN_PRECISION + " to "
+                    + DenseHyperLogLog.MAX_PRECISION + ", got " + p);
+        }
+        this.p = p;
+        this.registers = new AtomicLongArray((1 << p) >>> 3);
+    }
+
+    /**
+     * Same as {@code offerHashed(HashUtils.murmurHash64(value))}
+     */
+    public boolean offer(CharSequence value) {
+        return offerHashed(HashUtils.murmurHash64(value));
+    }
+
+    /**
+     * Adds a value given by its 64-bit hash, see {@link DenseHyperLogLog#offerHashed(long)}.
+     *
+     * @return true if a register was changed by this call
+     */
+    public boolean offerHashed(long hash) {
+        final int index = (int) (hash >>> -p);
+        return max(index, Long.numberOfLeadingZeros((hash << p) | (1L << (p - 1))) + 1);
+    }
+
+    /**
+     * Merges the given sketch into this one, it may be called while other threads offer values.
+     *
+     * @throws CardinalityMergeException if the sketches have different precisions
+     */
+    public ConcurrentHyperLogLog addAll(DenseHyperLogLog other) throws CardinalityMergeException {
+        checkPrecision(other.getPrecision());
+        final byte[] ranks = other.getRegisters();
+        for (int w = 0; w < registers.length(); w++) {
+            long word = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += 8) {
+                word |= (long) ranks[(w << 3) | (shift >>> 3)] << shift;
+            }
+            maxWord(w, word);
+        }
+        return this;
+    }
+
+    /**
+     * Merges the given sketch into this one, both may be updated by other threads meanwhile.
+     *
+     * @throws CardinalityMergeException if the sketches have different precisions
+     */
+    public ConcurrentHyperLogLog addAll(ConcurrentHyperLogLog other) throws CardinalityMergeException {
+        checkPrecision(other.p);
+        for (int w = 0; w < registers.length(); w++) {
+            maxWord(w, other.registers.get(w));
+        }
+        return this;
+    }
+
+    /**
+     * @return the estimated number of distinct values offered, see {@link DenseHyperLogLog#cardinality()}
+     */
+    public long cardinality() {
+        return toDenseHyperLogLog().cardinality();
+    }
+
+    /**
+     * Copies the current registers into a new single-threaded sketch, which may then be merged with other
+     * {@link DenseHyperLogLog}s.
+     */
+    public DenseHyperLogLog toDenseHyperLogLog() {
+        final byte[] ranks = new byte[1 << p];
+        for (int w = 0; w < registers.length(); w++) {
+            final long word = registers.get(w);
+            for (int shift = 0; shift < Long.SIZE; shift += 8) {
+                ranks[(w << 3) | (shift >>> 3)] = (byte) (word >>> shift);
+            }
+        }
+        return new DenseHyperLogLog(p, ranks);
+    }
+
+    public int getPrecision() {
+        return p;
+    }
+
+    /**
+     * Raises the register at the given index to the given rank, unless it's already higher
+     *
+     * @return true if the register was raised by this call
+     */
+    private boolean max(int index, int rank) {
+        final int w = index >>> 3;
+        final int shift = (index & 7) << 3;
+        final long mask = 0xFFL << shift;
+        final long shifted = (long) rank << shift;
+        long word;
+        do {
+            word = registers.get(w);
+            if ((word & mask) >= shifted) return false;
+        } while (!registers.compareAndSet(w, word, (word & ~mask) | shifted));
+        return true;
+    }
+
+    /**
+     * Raises the registers of the given word to the given ranks, where they are lower
+     */
+    private void maxWord(int w, long ranks) {
+        if (ranks == 0) return;
+        long word;
+        long merged;
+        do {
+            word = registers.get(w);
+            merged = maxBytes(word, ranks);
+            if (merged == word) return;
+        } while (!registers.compareAndSet(w, word, merged));
+    }
+
+    /**
+     * @return the byte-wise max of two words of registers
+     */
+    static long maxBytes(long a, long b) {
+        // the high bit of each byte of the difference is set where a >= b, as the bytes of a and b are below 128
+        final long greaterOrEqual = (((a | HIGH_BITS) - b) & HIGH_BITS) >>> 7;
+        return b ^ ((a ^ b) & (greaterOrEqual * 0xFF));
+    }
+
+    private void checkPrecision(int precision) throws CardinalityMergeException {
+        if (precision != p) {
+            throw new DenseHyperLogLog.DenseHyperLogLogMergeException("Cannot merge sketches of precision " + p
+                    + " and " + precision);
+        }
+    }
+}
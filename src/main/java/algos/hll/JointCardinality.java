@@ -0,0 +1,352 @@
+package algos.hll;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+
+/**
+ * Cardinalities of the intersection and of both differences of two sets, estimated from their
+ * {@link DenseHyperLogLog} sketches by the joint maximum likelihood method of O. Ertl ("New cardinality estimation
+ * algorithms for HyperLogLog sketches", 2017).
+ * <p>
+ * Inclusion-exclusion, {@code |A| + |B|} minus the size of the union, subtracts estimates which each carry an error
+ * proportional to the sizes of the sets, so the error of a small intersection, or of the intersection of sets of very
+ * different sizes, is large compared to the intersection itself. Here the register pairs of both sketches are modelled
+ * as the maxima of the registers of three independent sketches of {@code A\B}, {@code B\A} and the intersection, and
+ * the three cardinalities maximizing the likelihood of the observed pairs are searched for. A single pass over both
+ * register arrays builds histograms of the pairs, the search only reads the histograms, and no merged sketch is
+ * allocated.
+ */
+public class JointCardinality {
+
+    private static final int MAX_ITERATIONS = 2_000;
+    private static final double TOLERANCE = 1e-6;
+
+    private final double firstOnly;
+    private final double secondOnly;
+    private final double intersection;
+
+    private JointCardinality(double firstOnly, double secondOnly, double intersection) {
+        this.firstOnly = firstOnly;
+        this.secondOnly = secondOnly;
+        this.intersection = intersection;
+    }
+
+    /**
+     * @throws CardinalityMergeException if the sketches have different precisions
+     */
+    public static JointCardinality estimate(DenseHyperLogLog first, DenseHyperLogLog second) throws CardinalityMergeException {
+        first.checkPrecision(second);
+        final Likelihood likelihood = new Likelihood(first.getPrecision(), first.getRegisters(), second.getRegisters());
+        return likelihood.maximize();
+    }
+
+    /**
+     * @return the estimated {@code |A\B|}
+     */
+    public double getFirstOnly() {
+        return firstOnly;
+    }
+
+    /**
+     * @return the estimated {@code |B\A|}
+     */
+    public double getSecondOnly() {
+        return secondOnly;
+    }
+
+    /**
+     * @return the estimated size of the intersection
+     */
+    public double getIntersection() {
+        return intersection;
+    }
+
+    /**
+     * @return the estimated {@code |A|}
+     */
+    public double getFirst() {
+        return firstOnly + intersection;
+    }
+
+    /**
+     * @return the estimated {@code |B|}
+     */
+    public double getSecond() {
+        return secondOnly + intersection;
+    }
+
+    /**
+     * @return the estimated size of the union
+     */
+    public double getUnion() {
+        return firstOnly + secondOnly + intersection;
+    }
+
+    /**
+     * @return the estimated Jaccard index, the size of the intersection divided by the size of the union, 0 if both
+     * sets are empty
+     */
+    public double getJaccard() {
+        final double union = getUnion();
+        return union == 0 ? 0 : intersection / union;
+    }
+
+    @Override
+    public String toString() {
+        return "JointCardinality{firstOnly=" + Math.round(firstOnly) + ", secondOnly=" + Math.round(secondOnly)
+                + ", intersection=" + Math.round(intersection) + "}";
+    }
+
+    /**
+     * Log-likelihood of the register pairs of two sketches, as a function of the rates of {@code A\B}, {@code B\A}
+     * and the intersection per register. A register of a sketch of {@code n} values is at most {@code k} with
+     * probability {@code exp(-n/m * 2^-k)} for {@code k <= q} and 1 for {@code k = q + 1}, where {@code q = 64 - p}.
+     */
+    private static final class Likelihood {
+
+        /* 2^-k */
+        private static final double[] POWERS = new double[Long.SIZE + 1];
+
+        static {
+            for (int k = 0; k < POWERS.length; k++) {
+                POWERS[k] = Math.scalb(1.0, -k);
+            }
+        }
+
+        private final int m;
+        private final int q;
+        /* the registers of the first sketch holding k where the second one holds more, and so on */
+        private final int[] firstLess;
+        private final int[] firstGreater;
+        private final int[] secondLess;
+        private final int[] secondGreater;
+        private final int[] equal;
+        /* the range of the register values present, and 1 - P(K <= k) of those values for the current rates */
+        private final int minK;
+        private final int maxK;
+        private final double[] uA;
+        private final double[] uB;
+        private final double[] uX;
+        private final double[] uAX;
+        private final double[] uBX;
+
+        Likelihood(int p, byte[] first, byte[] second) {
+            m = 1 << p;
+            q = 64 - p;
+            firstLess = new int[q + 2];
+            firstGreater = new int[q + 2];
+            secondLess = new int[q + 2];
+            secondGreater = new int[q + 2];
+            equal = new int[q + 2];
+            // a histogram of the pairs first, it's filled without branches on the register values
+            final int width = q + 2;
+            final int[] pairs = new int[width * width];
+            for (int i = 0; i < m; i++) {
+                pairs[first[i] * width + second[i]]++;
+            }
+            for (int k1 = 0; k1 < width; k1++) {
+                for (int k2 = 0; k2 < width; k2++) {
+                    final int count = pairs[k1 * width + k2];
+                    if (count == 0) continue;
+                    if (k1 < k2) {
+                        firstLess[k1] += count;
+                        secondGreater[k2] += count;
+                    } else if (k1 > k2) {
+                        firstGreater[k1] += count;
+                        secondLess[k2] += count;
+                    } else {
+                        equal[k1] += count;
+                    }
+                }
+            }
+            int min = q + 1;
+            int max = 0;
+            for (int k = 0; k <= q + 1; k++) {
+                if (firstLess[k] + firstGreater[k] + secondLess[k] + secondGreater[k] + equal[k] != 0) {
+                    min = Math.min(min, k);
+                    max = k;
+                }
+            }
+            minK = min;
+            maxK = max;
+            uA = new double[q + 2];
+            uB = new double[q + 2];
+            uX = new double[q + 2];
+            uAX = new double[q + 2];
+            uBX = new double[q + 2];
+        }
+
+        JointCardinality maximize() {
+            // inclusion-exclusion of the single sketch estimates is the starting point
+            final int[] firstCounts = new int[q + 2];
+            final int[] secondCounts = new int[q + 2];
+            final int[] unionCounts = new int[q + 2];
+            for (int k = 0; k <= q + 1; k++) {
+                firstCounts[k] = firstLess[k] + firstGreater[k] + equal[k];
+                secondCounts[k] = secondLess[k] + secondGreater[k] + equal[k];
+                unionCounts[k] = firstGreater[k] + secondGreater[k] + equal[k];
+            }
+            final int p = 64 - q;
+            final double a = DenseHyperLogLog.estimate(firstCounts, p);
+            final double b = DenseHyperLogLog.estimate(secondCounts, p);
+            final double union = DenseHyperLogLog.estimate(unionCounts, p);
+            if (union == 0) return new JointCardinality(0, 0, 0);
+
+            // the rates are searched for by their logarithms, so they stay positive
+            double[] best = {
+                    Math.log(Math.max(union - b, 1) / m),
+                    Math.log(Math.max(union - a, 1) / m),
+                    Math.log(Math.max(a + b - union, 1) / m)
+            };
+            // a second run from the optimum of the first one, a collapsed simplex may stop short of it
+            best = minimize(best, 0.5);
+            best = minimize(best, 0.05);
+            return new JointCardinality(m * Math.exp(best[0]), m * Math.exp(best[1]), m * Math.exp(best[2]));
+        }
+
+        /**
+         * @return the negative log-likelihood of the rates {@code exp(y[0])} of {@code A\B}, {@code exp(y[1])} of
+         * {@code B\A} and {@code exp(y[2])} of the intersection
+         */
+        private double cost(double[] y) {
+            final double a = Math.exp(y[0]);
+            final double b = Math.exp(y[1]);
+            final double x = Math.exp(y[2]);
+            complementOfCdf(a, uA);
+            complementOfCdf(b, uB);
+            complementOfCdf(x, uX);
+            complementOfCdf(a + x, uAX);
+            complementOfCdf(b + x, uBX);
+            double result = 0;
+            for (int k = minK; k <= maxK; k++) {
+                if (firstLess[k] != 0) result += firstLess[k] * logPmf(a + x, uAX, k);
+                if (secondGreater[k] != 0) result += secondGreater[k] * logPmf(b, uB, k);
+                if (firstGreater[k] != 0) result += firstGreater[k] * logPmf(a, uA, k);
+                if (secondLess[k] != 0) result += secondLess[k] * logPmf(b + x, uBX, k);
+                if (equal[k] != 0) {
+                    // either the intersection holds the maximum and neither difference exceeds it, or both
+                    // differences hold it: P(Kx = k) P(Ka <= k) P(Kb <= k) + P(Kx <= k - 1) P(Ka = k) P(Kb = k)
+                    result += equal[k] * (k == 0
+                            ? -(a + b + x)
+                            : logCdf(a + b + x, k) + Math.log(uX[k] + (1 - uX[k]) * uA[k] * uB[k]));
+                }
+            }
+            return Double.isNaN(result) ? Double.POSITIVE_INFINITY : -result;
+        }
+
+        /**
+         * @return the log of the probability that a register of rate {@code rate} is at most {@code k}, for
+         * {@code k >= 0}
+         */
+        private double logCdf(double rate, int k) {
+            return k > q ? 0 : -rate * POWERS[k];
+        }
+
+        /**
+         * @return the log of the probability that a register of rate {@code rate} is {@code k}, given the
+         * {@link #complementOfCdf(double, double[])} of that rate
+         */
+        private double logPmf(double rate, double[] u, int k) {
+            // P(K = k) = P(K <= k) - P(K <= k - 1) = P(K <= k) * (1 - P(K <= k)) for 1 <= k <= q
+            return k == 0 ? -rate : logCdf(rate, k) + Math.log(u[k]);
+        }
+
+        /**
+         * Fills {@code u(k) = 1 - P(K <= k)} of a register of rate {@code rate}, for the present register values
+         * {@code k >= 1}, with {@code u(q + 1) = u(q)}. Since {@code P(K <= k - 1) = P(K <= k)^2} for
+         * {@code 1 <= k <= q}, {@code u(k - 1) = u(k) * (2 - u(k))}: a single {@code expm1} is needed, and there is no
+         * cancellation where {@code P(K <= k)} is close to 1.
+         */
+        private void complementOfCdf(double rate, double[] into) {
+            final int top = Math.min(maxK, q);
+            double u = -Math.expm1(-rate * POWERS[top]);
+            if (maxK > q) into[q + 1] = u;
+            for (int k = top; k >= Math.max(minK, 1); k--) {
+                into[k] = u;
+                u *= 2 - u;
+            }
+        }
+
+        /**
+         * Nelder-Mead search of the minimum of {@link #cost(double[])}
+         */
+        private double[] minimize(double[] start, double step) {
+            final int n = start.length;
+            final double[][] simplex = new double[n + 1][];
+            final double[] costs = new double[n + 1];
+            for (int i = 0; i <= n; i++) {
+                simplex[i] = start.clone();
+                if (i > 0) simplex[i][i - 1] += step;
+                costs[i] = cost(simplex[i]);
+            }
+            for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+                sort(simplex, costs);
+                if (costs[n] - costs[0] <= TOLERANCE) break;
+                final double[] centroid = new double[n];
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < n; j++) centroid[j] += simplex[i][j] / n;
+                }
+                final double[] reflected = along(centroid, simplex[n], -1);
+                final double reflectedCost = cost(reflected);
+                if (reflectedCost < costs[0]) {
+                    final double[] expanded = along(centroid, simplex[n], -2);
+                    final double expandedCost = cost(expanded);
+                    if (expandedCost < reflectedCost) {
+                        simplex[n] = expanded;
+                        costs[n] = expandedCost;
+                    } else {
+                        simplex[n] = reflected;
+                        costs[n] = reflectedCost;
+                    }
+                } else if (reflectedCost < costs[n - 1]) {
+                    simplex[n] = reflected;
+                    costs[n] = reflectedCost;
+                } else {
+                    final double[] contracted = reflectedCost < costs[n]
+                            ? along(centroid, simplex[n], -0.5)
+                            : along(centroid, simplex[n], 0.5);
+                    final double contractedCost = cost(contracted);
+                    if (contractedCost < Math.min(reflectedCost, costs[n])) {
+                        simplex[n] = contracted;
+                        costs[n] = contractedCost;
+                    } else {
+                        for (int i = 1; i <= n; i++) {
+                            simplex[i] = along(simplex[0], simplex[i], 0.5);
+                            costs[i] = cost(simplex[i]);
+                        }
+                    }
+                }
+            }
+            sort(simplex, costs);
+            return simplex[0];
+        }
+
+        /**
+         * @return {@code from + factor * (to - from)}
+         */
+        private static double[] along(double[] from, double[] to, double factor) {
+            final double[] result = new double[from.length];
+            for (int j = 0; j < from.length; j++) {
+                result[j] = from[j] + factor * (to[j] - from[j]);
+            }
+            return result;
+        }
+
+        /**
+         * Insertion sort of the simplex vertices by their costs
+         */
+        private static void sort(double[][] simplex, double[] costs) {
+            for (int i = 1; i < costs.length; i++) {
+                final double[] vertex = simplex[i];
+                final double cost = costs[i];
+                int j = i - 1;
+                while (j >= 0 && costs[j] > cost) {
+                    simplex[j + 1] = simplex[j];
+                    costs[j + 1] = costs[j];
+                    j--;
+                }
+                simplex[j + 1] = vertex;
+                costs[j + 1] = cost;
+            }
+        }
+    }
+}
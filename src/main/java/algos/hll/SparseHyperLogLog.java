@@ -0,0 +1,336 @@
+package algos.hll;
+
+import algos.utils.HashUtils;
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch which starts in a sparse representation and converts itself into a {@link DenseHyperLogLog} once
+ * that's smaller, as HyperLogLog++ does. A dense sketch takes {@code 2^p} bytes whatever it holds, while most sketches
+ * of per-key indexes see only a few hundred values.
+ * <p>
+ * The sparse representation is a sorted array of ints, one per register of a sketch of the higher sparse precision
+ * {@code sp} which isn't zero: its index, the top {@code sp} bits of the hash, in the high bits and its rank in the low
+ * 6 bits. The rank at precision {@code p} of a hash can be recovered from its index and rank at precision
+ * {@code sp}, so the conversion gives exactly the registers of a dense sketch fed with the same hashes, and while the
+ * sketch is sparse its estimate has the much smaller error of precision {@code sp}.
+ * <p>
+ * The sketch isn't thread-safe.
+ */
+public class SparseHyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The largest sparse precision, for which an index and a rank still fit in a positive int
+     */
+    public static final int MAX_SPARSE_PRECISION = 25;
+
+    public static final int DEFAULT_SPARSE_PRECISION = MAX_SPARSE_PRECISION;
+
+    private static final int RANK_BITS = 6;
+    private static final int RANK_MASK = (1 << RANK_BITS) - 1;
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final int p;
+    private final int sp;
+
+    /**
+     * The sorted entries while sparse, null once dense
+     */
+    private int[] entries;
+    private int size;
+
+    /**
+     * Null while sparse
+     */
+    private DenseHyperLogLog dense;
+
+    public SparseHyperLogLog() {
+        this(DenseHyperLogLog.DEFAULT_PRECISION, DEFAULT_SPARSE_PRECISION);
+    }
+
+    /**
+     * @param p  the precision of the dense representation, see {@link DenseHyperLogLog#DenseHyperLogLog(int)}
+     * @param sp the precision of the sparse representation, from {@code p} to {@link #MAX_SPARSE_PRECISION}
+     */
+    public SparseHyperLogLog(int p, int sp) {
+        if (p < DenseHyperLogLog.MIN_PRECISION || p > DenseHyperLogLog.MAX_PRECISION) {
+            throw new IllegalArgumentException("p must be from " + DenseHyperLogLog.MIN_PRECISION + " to "
+                    + DenseHyperLogLog.MAX_PRECISION + ", got " + p);
+        }
+        if (sp < p || sp > MAX_SPARSE_PRECISION) {
+            throw new IllegalArgumentException("sp must be from " + p + " to " + MAX_SPARSE_PRECISION + ", got " + sp);
+        }
+        this.p = p;
+        this.sp = sp;
+        this.entries = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Same as {@code offerHashed(HashUtils.murmurHash64(value))}
+     */
+    public boolean offer(CharSequence value) {
+        return offerHashed(HashUtils.murmurHash64(value));
+    }
+
+    /**
+     * Adds a value given by its 64-bit hash.
+     *
+     * @return true if the sketch was changed
+     */
+    public boolean offerHashed(long hash) {
+        if (dense != null) return dense.offerHashed(hash);
+        final int index = (int) (hash >>> -sp);
+        final int rank = Long.numberOfLeadingZeros((hash << sp) | (1L << (sp - 1))) + 1;
+        return add(index, rank);
+    }
+
+    /**
+     * Batch version of {@link #offerHashed(long)}
+     */
+    public void offerAllHashed(long... hashes) {
+        for (long hash : hashes) {
+            offerHashed(hash);
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values offered
+     */
+    public long cardinality() {
+        if (dense != null) return dense.cardinality();
+        final int[] counts = new int[66];
+        counts[0] = (1 << sp) - size;
+        for (int i = 0; i < size; i++) {
+            counts[entries[i] & RANK_MASK]++;
+        }
+        return Math.round(DenseHyperLogLog.estimate(counts, sp));
+    }
+
+    /**
+     * Merges the given sketch into this one, so that this one estimates the union of both. This sketch becomes dense
+     * if the other one is dense, or if the union of the entries takes more than the dense registers.
+     *
+     * @throws CardinalityMergeException if the sketches have different precisions
+     */
+    public SparseHyperLogLog addAll(SparseHyperLogLog other) throws CardinalityMergeException {
+        if (other.p != p || other.sp != sp) {
+            throw new DenseHyperLogLog.DenseHyperLogLogMergeException("Cannot merge sketches of precisions " + p + "/"
+                    + sp + " and " + other.p + "/" + other.sp);
+        }
+        if (other.dense != null) {
+            convert();
+            dense.addAll(other.dense);
+        } else if (dense != null) {
+            for (int i = 0; i < other.size; i++) {
+                raise(dense, other.entries[i]);
+            }
+        } else {
+            mergeEntries(other.entries, other.size);
+        }
+        return this;
+    }
+
+    /**
+     * @return the registers as a new dense sketch, independent of this one
+     */
+    public DenseHyperLogLog toDenseHyperLogLog() {
+        if (dense != null) return dense.copy();
+        final DenseHyperLogLog result = new DenseHyperLogLog(p);
+        for (int i = 0; i < size; i++) {
+            raise(result, entries[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return an independent copy of this sketch
+     */
+    public SparseHyperLogLog copy() {
+        final SparseHyperLogLog copy = new SparseHyperLogLog(p, sp);
+        copy.entries = entries == null ? null : Arrays.copyOf(entries, Math.max(size, INITIAL_CAPACITY));
+        copy.size = size;
+        copy.dense = dense == null ? null : dense.copy();
+        return copy;
+    }
+
+    public boolean isSparse() {
+        return dense == null;
+    }
+
+    public int getPrecision() {
+        return p;
+    }
+
+    public int getSparsePrecision() {
+        return sp;
+    }
+
+    /**
+     * @return the number of bytes taken by the entries or the registers
+     */
+    public int sizeof() {
+        return dense != null ? dense.sizeof() : entries.length * Integer.BYTES;
+    }
+
+    /**
+     * Sketches are equal when they have the same precisions and the same registers at precision {@code p}, whether
+     * they are sparse or dense. The finer registers of a sparse sketch aren't compared, so a sparse sketch is equal to
+     * the dense one it converts to, and to any other sketch equal to that one.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SparseHyperLogLog that = (SparseHyperLogLog) o;
+        if (p != that.p || sp != that.sp) return false;
+        if (dense != null && that.dense != null) return dense.equals(that.dense);
+        return Arrays.equals(registers(), that.registers());
+    }
+
+    /**
+     * Hashes the non-zero registers at precision {@code p}, in index order, without building the dense registers of a
+     * sparse sketch
+     */
+    @Override
+    public int hashCode() {
+        int hash = 31 * p + sp;
+        if (dense != null) {
+            final byte[] registers = dense.getRegisters();
+            for (int index = 0; index < registers.length; index++) {
+                if (registers[index] != 0) hash = 31 * hash + (index << RANK_BITS | registers[index]);
+            }
+        } else {
+            for (int register : registers()) {
+                hash = 31 * hash + register;
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "SparseHyperLogLog{p=" + p + ", sp=" + sp + (dense == null ? ", entries=" + size : ", dense") + "}";
+    }
+
+    private boolean add(int index, int rank) {
+        final int key = index << RANK_BITS;
+        // ranks never reach the mask, so the search always ends at the insertion point after the entry of the index
+        final int at = -Arrays.binarySearch(entries, 0, size, key | RANK_MASK) - 1;
+        if (at > 0 && entries[at - 1] >>> RANK_BITS == index) {
+            if ((entries[at - 1] & RANK_MASK) >= rank) return false;
+            entries[at - 1] = key | rank;
+            return true;
+        }
+        if (size + 1 > threshold()) {
+            convert();
+            raise(dense, key | rank);
+            return true;
+        }
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size + (size >> 1) + 1);
+        }
+        System.arraycopy(entries, at, entries, at + 1, size - at);
+        entries[at] = key | rank;
+        size++;
+        return true;
+    }
+
+    /**
+     * Merges the sorted entries of another sparse sketch, keeping the highest rank of each index
+     */
+    private void mergeEntries(int[] others, int otherSize) {
+        final int[] merged = new int[size + otherSize];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < size || j < otherSize) {
+            final int entry;
+            if (j == otherSize || (i < size && entries[i] < others[j])) {
+                entry = entries[i++];
+            } else {
+                entry = others[j++];
+            }
+            if (n > 0 && merged[n - 1] >>> RANK_BITS == entry >>> RANK_BITS) {
+                // the same index, the later one of the sorted entries has the higher rank
+                merged[n - 1] = entry;
+            } else {
+                merged[n++] = entry;
+            }
+        }
+        entries = merged;
+        size = n;
+        if (size > threshold()) {
+            convert();
+        }
+    }
+
+    /**
+     * @return the largest number of entries kept sparse, past which the dense registers take less memory
+     */
+    private int threshold() {
+        return (1 << p) / Integer.BYTES;
+    }
+
+    private void convert() {
+        if (dense != null) return;
+        dense = toDenseHyperLogLog();
+        entries = null;
+        size = 0;
+    }
+
+    /**
+     * Raises the register of the given sketch holding the hash which the given entry comes from
+     */
+    private void raise(DenseHyperLogLog target, int entry) {
+        target.raise((entry >>> RANK_BITS) >>> (sp - p), rank(entry));
+    }
+
+    /**
+     * @return the rank at precision {@code p} of the hash which the given entry comes from
+     */
+    private int rank(int entry) {
+        final int extraBits = sp - p;
+        // the bits between the top p and the top sp bits of the hash
+        final int between = (entry >>> RANK_BITS) & ((1 << extraBits) - 1);
+        return between != 0
+                ? Integer.numberOfLeadingZeros(between) - (Integer.SIZE - extraBits) + 1
+                : extraBits + (entry & RANK_MASK);
+    }
+
+    /**
+     * @return the non-zero registers at precision {@code p} in index order, each as its index in the high bits and
+     * its rank in the low 6 bits
+     */
+    private int[] registers() {
+        if (dense != null) {
+            final byte[] registers = dense.getRegisters();
+            int n = 0;
+            for (byte register : registers) {
+                if (register != 0) n++;
+            }
+            final int[] result = new int[n];
+            n = 0;
+            for (int index = 0; index < registers.length; index++) {
+                if (registers[index] != 0) result[n++] = index << RANK_BITS | registers[index];
+            }
+            return result;
+        }
+        // the entries of a register at precision p are next to each other, as they're sorted by their finer index
+        final int[] result = new int[size];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            final int index = (entries[i] >>> RANK_BITS) >>> (sp - p);
+            final int rank = rank(entries[i]);
+            if (n > 0 && result[n - 1] >>> RANK_BITS == index) {
+                result[n - 1] = index << RANK_BITS | Math.max(rank, result[n - 1] & RANK_MASK);
+            } else {
+                result[n++] = index << RANK_BITS | rank;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+}
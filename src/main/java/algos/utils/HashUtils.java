@@ -0,0 +1,222 @@
+package algos.utils;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * MurmurHash 2.0 routines producing exactly the same values as
+ * {@link com.clearspring.analytics.hash.MurmurHash}, but able to hash a slice of a bigger buffer
+ * (e.g. a row inside a read buffer) without copying it into an array of its own, and to hash strings
+ * without allocating their {@code getBytes()} copy.
+ */
+public class HashUtils {
+
+    static final int DEFAULT_SEED = -1;
+    static final int DEFAULT_SEED_64 = 0xe17a1465;
+
+    /**
+     * Whether the platform charset encodes every ASCII char as the single byte of the same value
+     * (true for UTF-8, ISO-8859-*, windows-125*, US-ASCII), which allows to skip the encoder for ASCII strings
+     */
+    static final boolean ASCII_COMPATIBLE_CHARSET = isAsciiCompatible(Charset.defaultCharset());
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Same as {@code MurmurHash.hash(s.toString().getBytes())}, but doesn't allocate anything for ASCII strings
+     */
+    public static int murmurHash(CharSequence s) {
+        final Scratch scratch = SCRATCH.get();
+        final int length = scratch.encode(s);
+        return murmurHash(scratch.bytes, 0, length);
+    }
+
+    /**
+     * Same as {@code MurmurHash.hash64(s.toString().getBytes(), length)}, but doesn't allocate anything for ASCII
+     * strings
+     */
+    public static long murmurHash64(CharSequence s) {
+        final Scratch scratch = SCRATCH.get();
+        final int length = scratch.encode(s);
+        return murmurHash64(scratch.bytes, 0, length);
+    }
+
+    /**
+     * Same as {@code MurmurHash.hash(Arrays.copyOfRange(data, offset, offset + length))}
+     */
+    public static int murmurHash(byte[] data, int offset, int length) {
+        return murmurHash(data, offset, length, DEFAULT_SEED);
+    }
+
+    /**
+     * Same as {@code MurmurHash.hash(Arrays.copyOfRange(data, offset, offset + length), length, seed)}
+     */
+    public static int murmurHash(byte[] data, int offset, int length, int seed) {
+        final int m = 0x5bd1e995;
+        final int r = 24;
+
+        int h = seed ^ length;
+
+        final int len4 = length >> 2;
+        for (int i = 0; i < len4; i++) {
+            final int i4 = offset + (i << 2);
+            int k = (data[i4] & 0xff) | ((data[i4 + 1] & 0xff) << 8) | ((data[i4 + 2] & 0xff) << 16) | (data[i4 + 3] << 24);
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h *= m;
+            h ^= k;
+        }
+
+        // tail bytes are sign extended on purpose, that's how the reference implementation does it
+        final int end = offset + length;
+        final int left = length - (len4 << 2);
+        if (left != 0) {
+            if (left >= 3) {
+                h ^= (int) data[end - 3] << 16;
+            }
+            if (left >= 2) {
+                h ^= (int) data[end - 2] << 8;
+            }
+            h ^= (int) data[end - 1];
+            h *= m;
+        }
+
+        h ^= h >>> 13;
+        h *= m;
+        h ^= h >>> 15;
+        return h;
+    }
+
+    /**
+     * Same as {@code MurmurHash.hash64(Arrays.copyOfRange(data, offset, offset + length), length)}
+     */
+    public static long murmurHash64(byte[] data, int offset, int length) {
+        return murmurHash64(data, offset, length, DEFAULT_SEED_64);
+    }
+
+    /**
+     * Same as {@code MurmurHash.hash64(Arrays.copyOfRange(data, offset, offset + length), length, seed)}
+     */
+    @SuppressWarnings("fallthrough")
+    public static long murmurHash64(byte[] data, int offset, int length, int seed) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+
+        long h = (seed & 0xffffffffL) ^ (length * m);
+
+        final int length8 = length >> 3;
+        for (int i = 0; i < length8; i++) {
+            final int i8 = offset + (i << 3);
+            long k = ((long) data[i8] & 0xff) | (((long) data[i8 + 1] & 0xff) << 8)
+                    | (((long) data[i8 + 2] & 0xff) << 16) | (((long) data[i8 + 3] & 0xff) << 24)
+                    | (((long) data[i8 + 4] & 0xff) << 32) | (((long) data[i8 + 5] & 0xff) << 40)
+                    | (((long) data[i8 + 6] & 0xff) << 48) | (((long) data[i8 + 7] & 0xff) << 56);
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+
+        final int tail = offset + (length & ~7);
+        // each case falls through, the tail bytes are mixed in from the last one down as in MurmurHash64A
+        switch (length & 7) {
+            case 7:
+                h ^= (long) (data[tail + 6] & 0xff) << 48;
+            case 6:
+                h ^= (long) (data[tail + 5] & 0xff) << 40;
+            case 5:
+                h ^= (long) (data[tail + 4] & 0xff) << 32;
+            case 4:
+                h ^= (long) (data[tail + 3] & 0xff) << 24;
+            case 3:
+                h ^= (long) (data[tail + 2] & 0xff) << 16;
+            case 2:
+                h ^= (long) (data[tail + 1] & 0xff) << 8;
+            case 1:
+                h ^= (long) (data[tail] & 0xff);
+                h *= m;
+        }
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+
+    static boolean isAsciiCompatible(Charset charset) {
+        final char[] ascii = new char[0x80];
+        final byte[] expected = new byte[0x80];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (char) i;
+            expected[i] = (byte) i;
+        }
+        return Arrays.equals(expected, new String(ascii).getBytes(charset));
+    }
+
+    /**
+     * Per thread buffers used to encode strings into the platform charset the same way {@code String.getBytes()} does
+     */
+    private static final class Scratch {
+
+        byte[] bytes = new byte[256];
+        char[] chars = new char[0];
+        CharBuffer charBuffer = CharBuffer.wrap(chars);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        final CharsetEncoder encoder = Charset.defaultCharset()
+                .newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        /**
+         * @return length of {@code s} encoded into {@link #bytes}
+         */
+        int encode(CharSequence s) {
+            final int length = s.length();
+            if (ASCII_COMPATIBLE_CHARSET) {
+                ensureBytes(length);
+                int i = 0;
+                for (char c; i < length && (c = s.charAt(i)) < 0x80; i++) {
+                    bytes[i] = (byte) c;
+                }
+                if (i == length) return length;
+            }
+            return encodeWithEncoder(s, length);
+        }
+
+        private int encodeWithEncoder(CharSequence s, int length) {
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length << 1)];
+                charBuffer = CharBuffer.wrap(chars);
+            }
+            for (int i = 0; i < length; i++) {
+                chars[i] = s.charAt(i);
+            }
+            ensureBytes((int) Math.min(Integer.MAX_VALUE, (long) length * (long) Math.ceil(encoder.maxBytesPerChar())));
+            while (true) {
+                // Buffer casts keep the class runnable on java 8 when it's built by newer JDKs
+                ((Buffer) charBuffer).clear().limit(length);
+                ((Buffer) byteBuffer).clear();
+                encoder.reset();
+                CoderResult result = encoder.encode(charBuffer, byteBuffer, true);
+                if (!result.isOverflow()) result = encoder.flush(byteBuffer);
+                if (!result.isOverflow()) return byteBuffer.position();
+                ensureBytes(bytes.length << 1);
+            }
+        }
+
+        private void ensureBytes(int length) {
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length << 1)];
+                byteBuffer = ByteBuffer.wrap(bytes);
+            }
+        }
+    }
+}
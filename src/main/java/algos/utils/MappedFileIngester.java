@@ -0,0 +1,167 @@
+package algos.utils;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Feeds rows of a file to sketches on several threads. The file is memory mapped and split into chunks on
+ * {@code '\n'} boundaries; every chunk is processed by a ForkJoin worker which passes the raw bytes of each row
+ * (without the line terminator) to its own partial result. Partial results are merged at the end, so the partial
+ * type doesn't have to be thread-safe.
+ * <p>
+ * Rows are never decoded into {@code String}s, hence hashes computed over the row bytes are identical to those
+ * computed over {@code String.getBytes()} as long as the file and the platform use the same charset.
+ */
+public class MappedFileIngester {
+
+    /**
+     * Max bytes mapped at once, {@link FileChannel#map} is limited by {@code Integer.MAX_VALUE}
+     */
+    static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    private static final byte NEW_LINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    @FunctionalInterface
+    public interface RowConsumer<T> {
+        /**
+         * @param partial partial result of the worker which has read the row
+         * @param row buffer holding the row bytes from position 0, reused for the next rows
+         * @param length row length in bytes
+         */
+        void accept(T partial, byte[] row, int length);
+    }
+
+    /**
+     * @param fileName file to ingest
+     * @param parallelism how many workers process the file
+     * @param partialSupplier creates an empty partial result for every chunk
+     * @param rowConsumer adds a row to a partial result
+     * @param merger merges two partial results into one
+     * @return merge of all partial results
+     */
+    public static <T> T ingest(String fileName, int parallelism, Supplier<T> partialSupplier, RowConsumer<T> rowConsumer, BinaryOperator<T> merger) {
+        if (parallelism <= 0) throw new IllegalArgumentException("Wrong parallelism argument: " + parallelism);
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            final long[] bounds = splitOnRows(channel, parallelism);
+            final ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                return pool.invoke(new IngestTask<>(channel, bounds, 0, bounds.length - 1, partialSupplier, rowConsumer, merger));
+            } finally {
+                pool.shutdown();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read from file " + fileName + " due " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return chunk bounds, chunk {@code i} spans bytes {@code [bounds[i], bounds[i + 1])} and always ends right
+     * after a new line character (or at the end of file)
+     */
+    static long[] splitOnRows(FileChannel channel, int parallelism) throws IOException {
+        final long size = channel.size();
+        final long chunks = Math.max(parallelism, (size + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+        final long chunkSize = Math.max(1, size / chunks);
+        final long[] bounds = new long[(int) chunks + 1];
+        final ByteBuffer probe = ByteBuffer.allocate(4096);
+        int count = 1;
+        long bound = 0;
+        while (count < chunks) {
+            bound = nextRowStart(channel, bound + chunkSize, size, probe);
+            if (bound >= size) break;
+            bounds[count++] = bound;
+        }
+        bounds[count++] = size;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    private static long nextRowStart(FileChannel channel, long from, long size, ByteBuffer probe) throws IOException {
+        long position = from;
+        while (position < size) {
+            ((Buffer) probe).clear(); // Buffer cast keeps the class runnable on java 8 when built by newer JDKs
+            final int read = channel.read(probe, position);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == NEW_LINE) return position + i + 1;
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static final class IngestTask<T> extends RecursiveTask<T> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+        private final Supplier<T> partialSupplier;
+        private final RowConsumer<T> rowConsumer;
+        private final BinaryOperator<T> merger;
+
+        IngestTask(FileChannel channel, long[] bounds, int from, int to, Supplier<T> partialSupplier, RowConsumer<T> rowConsumer, BinaryOperator<T> merger) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.partialSupplier = partialSupplier;
+            this.rowConsumer = rowConsumer;
+            this.merger = merger;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                final IngestTask<T> left = new IngestTask<>(channel, bounds, from, middle, partialSupplier, rowConsumer, merger);
+                final IngestTask<T> right = new IngestTask<>(channel, bounds, middle, to, partialSupplier, rowConsumer, merger);
+                left.fork();
+                final T rightResult = right.compute();
+                return merger.apply(left.join(), rightResult);
+            }
+            final T partial = partialSupplier.get();
+            try {
+                readChunk(channel.map(FileChannel.MapMode.READ_ONLY, bounds[from], bounds[to] - bounds[from]), partial);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to map file chunk due " + e.getMessage());
+            }
+            return partial;
+        }
+
+        private void readChunk(MappedByteBuffer buffer, T partial) {
+            byte[] row = new byte[256];
+            int length = 0;
+            final int limit = buffer.limit();
+            for (int i = 0; i < limit; i++) {
+                final byte b = buffer.get(i);
+                if (b == NEW_LINE) {
+                    accept(partial, row, length);
+                    length = 0;
+                } else {
+                    if (length == row.length) row = Arrays.copyOf(row, length << 1);
+                    row[length++] = b;
+                }
+            }
+            // last row of the file may have no new line character
+            if (length > 0) accept(partial, row, length);
+        }
+
+        private void accept(T partial, byte[] row, int length) {
+            // same as BufferedReader.readLine(), "\r\n" terminates a row as well
+            rowConsumer.accept(partial, row, length > 0 && row[length - 1] == CARRIAGE_RETURN ? length - 1 : length);
+        }
+    }
+}
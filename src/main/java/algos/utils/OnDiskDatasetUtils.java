@@ -1,16 +1,19 @@
 package algos.utils;
 
+import algos.ConcurrentSparseBitSet;
 import algos.IndexBitSetData;
 import algos.SparseBitSet;
+import algos.hll.ConcurrentHyperLogLog;
+import algos.hll.DenseHyperLogLog;
 import com.carrotsearch.sizeof.RamUsageEstimator;
-import com.clearspring.analytics.hash.MurmurHash;
-import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
@@ -97,26 +100,47 @@ public class OnDiskDatasetUtils {
         }
     }
 
+    /**
+     * Reads file once from the beginning to the end and passes its rows to {@code consumer} in consecutive batches
+     * of {@code batchSize} rows (the last batch may be shorter). Unlike {@link #readBatchFromFile} the file isn't
+     * reopened and re-skipped per batch, so the whole pass is linear in the file size.
+     * @return seconds spent inside {@code consumer}
+     */
     public static long performFuncOnFileBatchByBatch(String fileName, Consumer<String[]> consumer, int batchSize) {
-        int counter = 0;
+        if (batchSize <= 0) throw new IllegalArgumentException("Wrong batchSize argument: " + batchSize);
         long spentSeconds = 0;
-        while (true) {
-            int fromPos = counter * batchSize;
-            String[] array = readBatchFromFile(fileName, fromPos, batchSize);
-            if (array.length == 0) break;
-            long start = System.currentTimeMillis();
-            consumer.accept(array);
-            spentSeconds += System.currentTimeMillis() - start;
-            counter++;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName))) {
+            String[] batch = new String[batchSize];
+            while (true) {
+                final long readStart = System.currentTimeMillis();
+                int size = 0;
+                String line;
+                while (size < batchSize && (line = reader.readLine()) != null) {
+                    batch[size++] = line;
+                }
+                if (size == 0) break;
+                System.out.println(
+                        String.format("It takes %1$d seconds to read %2$d rows from file %3$s", (System.currentTimeMillis() - readStart) / 1000, size, fileName)
+                );
+                // consumer may keep the array, so every batch gets its own one
+                String[] array = size == batchSize ? batch : Arrays.copyOf(batch, size);
+                long start = System.currentTimeMillis();
+                consumer.accept(array);
+                spentSeconds += System.currentTimeMillis() - start;
+                if (size < batchSize) break;
+                batch = new String[batchSize];
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read from file " + fileName + " due " + e.getMessage());
         }
         return spentSeconds / 1000;
     }
 
-    public static HyperLogLogPlus makeHLLFromFile(String inputFileName) {
-        HyperLogLogPlus hll = new HyperLogLogPlus(16);
+    public static DenseHyperLogLog makeHLLFromFile(String inputFileName) {
+        DenseHyperLogLog hll = new DenseHyperLogLog();
         long spent = performFuncOnFileBatchByBatch(
                 inputFileName,
-                (String[] array) -> Stream.of(array).forEach(str -> hll.offerHashed(MurmurHash.hash64(str.getBytes(), str.getBytes().length))),
+                (String[] array) -> Stream.of(array).forEach(str -> hll.offerHashed(HashUtils.murmurHash64(str))),
                 1_000_000
         );
         System.out.println("Spent " + spent + " seconds to execute HLL");
@@ -128,11 +152,51 @@ public class OnDiskDatasetUtils {
         IndexBitSetData bitSetData = new IndexBitSetData();
         long spent = performFuncOnFileBatchByBatch(
                 inputFileName,
-                (String[] array) -> Stream.of(array).forEach(bitSetData::setVal),
+                bitSetData::setAll,
                 1_000_000
         );
         System.out.println("Spent " + spent + " seconds to execute BitSet");
         System.out.println("Result takes " + convertSize(RamUsageEstimator.sizeOf(bitSetData.getBitSet())));
         return bitSetData.getBitSet();
     }
+
+    /**
+     * Parallel version of {@link #makeHLLFromFile(String)}, see {@link MappedFileIngester}. All threads offer their
+     * hashes to one shared {@link ConcurrentHyperLogLog}, so there are no per-thread sketches to merge
+     */
+    public static DenseHyperLogLog makeHLLFromFileInParallel(String inputFileName, int parallelism) {
+        final long start = System.currentTimeMillis();
+        final ConcurrentHyperLogLog shared = new ConcurrentHyperLogLog();
+        MappedFileIngester.ingest(
+                inputFileName,
+                parallelism,
+                () -> shared,
+                (partial, row, length) -> partial.offerHashed(HashUtils.murmurHash64(row, 0, length)),
+                (hll1, hll2) -> hll1
+        );
+        DenseHyperLogLog hll = shared.toDenseHyperLogLog();
+        System.out.println("Spent " + (System.currentTimeMillis() - start) / 1000 + " seconds to execute HLL on " + parallelism + " threads");
+        System.out.println("Result takes " + convertSize(RamUsageEstimator.sizeOf(hll)));
+        return hll;
+    }
+
+    /**
+     * Parallel version of {@link #makeBitSetFromFile(String)}, see {@link MappedFileIngester}. All threads set bits of
+     * one shared {@link ConcurrentSparseBitSet}, so there are no per-thread bit sets to merge
+     */
+    public static SparseBitSet makeBitSetFromFileInParallel(String inputFileName, int parallelism) {
+        final long start = System.currentTimeMillis();
+        final ConcurrentSparseBitSet shared = new ConcurrentSparseBitSet();
+        MappedFileIngester.ingest(
+                inputFileName,
+                parallelism,
+                () -> shared,
+                (partial, row, length) -> partial.set(IndexBitSetData.toIndex(HashUtils.murmurHash(row, 0, length))),
+                (bitSet1, bitSet2) -> bitSet1
+        );
+        SparseBitSet bitSet = shared.toSparseBitSet();
+        System.out.println("Spent " + (System.currentTimeMillis() - start) / 1000 + " seconds to execute BitSet on " + parallelism + " threads");
+        System.out.println("Result takes " + convertSize(RamUsageEstimator.sizeOf(bitSet)));
+        return bitSet;
+    }
 }
@@ -1,10 +1,10 @@
 package algos.utils;
 
-import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
-import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
 import algos.IndexBitSetData;
 import algos.SparseBitSet;
+import algos.hll.DenseHyperLogLog;
+import algos.hll.JointCardinality;
 
 /**
  * Created by volodymyr.bakhmatiuk on 3/28/17.
@@ -12,41 +12,30 @@ import algos.SparseBitSet;
 public class SimilarityUtils {
 
     public static SparseBitSet createSBS(String[] input) {
-        IndexBitSetData bitSetData = new IndexBitSetData();
-        for (String str: input) {
-            bitSetData.setVal(str);
-        }
-        return bitSetData.getBitSet();
+        return new IndexBitSetData().setAll(input).getBitSet();
     }
 
-    public static HyperLogLogPlus createHLL(String[] input) {
-        HyperLogLogPlus hyperLogLog = new HyperLogLogPlus(16);
+    public static DenseHyperLogLog createHLL(String[] input) {
+        DenseHyperLogLog hyperLogLog = new DenseHyperLogLog();
         for (String str: input) {
-            hyperLogLog.offerHashed(MurmurHash.hash64(str.getBytes(), str.getBytes().length));
+            hyperLogLog.offerHashed(HashUtils.murmurHash64(str));
         }
         return hyperLogLog;
     }
 
 
     public static float similarity(SparseBitSet sparseBitSet1, SparseBitSet sparseBitSet2) {
-        int valuesTotal = 0;
-        int matched = 0;
-        for (int i = sparseBitSet1.nextSetBit(0); i >= 0; i = sparseBitSet1.nextSetBit(i + 1)) {
-            valuesTotal++;
-            if (sparseBitSet2.get(i)) {
-                matched++;
-            }
-        }
-        return valuesTotal == 0 ? 0.0f : matched / Float.valueOf(valuesTotal);
+        int valuesTotal = sparseBitSet1.cardinality();
+        return valuesTotal == 0 ? 0.0f : sparseBitSet1.andCardinality(sparseBitSet2) / Float.valueOf(valuesTotal);
     }
 
-    public static float similarity(HyperLogLogPlus hyperLogLog1, HyperLogLogPlus hyperLogLog2) throws CardinalityMergeException {
-        HyperLogLogPlus merge = new HyperLogLogPlus(16);
-        merge.addAll(hyperLogLog1);
-        merge.addAll(hyperLogLog2);
-        long intersectEstimate = (hyperLogLog1.cardinality() + hyperLogLog2.cardinality()) - merge.cardinality();
-        float  result = intersectEstimate / (float) hyperLogLog1.cardinality();
-//        logger.info("similarity to 2 : " + intersectEstimate / (double) hyperLogLogPlus2.cardinality());
-        return result;
+    /**
+     * Share of the values of the first sketch which are in the second one as well, estimated by
+     * {@link JointCardinality} rather than by inclusion-exclusion, so no merged sketch is built
+     */
+    public static float similarity(DenseHyperLogLog hyperLogLog1, DenseHyperLogLog hyperLogLog2) throws CardinalityMergeException {
+        JointCardinality joint = JointCardinality.estimate(hyperLogLog1, hyperLogLog2);
+        double valuesTotal = joint.getFirst();
+        return valuesTotal == 0 ? 0.0f : (float) (joint.getIntersection() / valuesTotal);
     }
 }
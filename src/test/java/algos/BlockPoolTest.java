@@ -0,0 +1,82 @@
+package algos;
+
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4ClassRunner.class)
+public class BlockPoolTest {
+
+    @Test
+    public void clearedSetReusesItsBlocksAndAreas() {
+        final Random random = new Random(59);
+        final BlockPool pool = new BlockPool();
+        SparseBitSet set = new SparseBitSet();
+        set.setBlockPool(pool);
+        for (int round = 0; round < 5; round++) {
+            BitSet expected = new BitSet();
+            for (int i = 0; i < 100_000; i++) {
+                // dense enough for most blocks to outgrow their array containers
+                int index = random.nextInt(1 << 20);
+                set.set(index);
+                expected.set(index);
+            }
+            SparseBitSetTest.assertSameBits(expected, set);
+            BitSet mask = new BitSet();
+            SparseBitSet other = new SparseBitSet();
+            for (int i = 0; i < 1_000; i++) {
+                int index = random.nextInt(1 << 19);
+                mask.set(index);
+                other.set(index);
+            }
+            if (round % 2 == 0) {
+                set.and(other);
+                expected.and(mask);
+            } else {
+                set.andNot(other);
+                expected.andNot(mask);
+            }
+            SparseBitSetTest.assertSameBits(expected, set);
+            set.clear();
+            assertTrue(set.isEmpty());
+        }
+        assertTrue(pool.toString(), pool.recycled() > 0);
+        assertTrue(pool.toString(), pool.hits() > 0);
+        assertTrue(pool.toString(), pool.hitRate() > 0.5);
+        assertTrue(pool.blocks() <= BlockPool.DEFAULT_MAX_BLOCKS);
+    }
+
+    @Test
+    public void fullPoolDiscardsAndSnapshotsKeepTheirBlocks() {
+        final BlockPool pool = new BlockPool(2, 1);
+        SparseBitSet set = new SparseBitSet();
+        set.setBlockPool(pool);
+        set.set(0, 1 << 18);
+        set.clear();
+        assertEquals(2, pool.blocks());
+        assertEquals(1, pool.areas());
+        assertTrue(pool.discarded() > 0);
+
+        set.set(0, 1 << 17);
+        FrozenSparseBitSet snapshot = set.snapshot();
+        set.clear();
+        set.set(1 << 17, 1 << 18);
+        assertEquals(1 << 17, snapshot.cardinality());
+        assertEquals(0, snapshot.nextSetBit(0));
+        assertEquals(1 << 17, snapshot.nextClearBit(0));
+        assertEquals(1 << 17, set.nextSetBit(0));
+
+        try {
+            new BlockPool(-1, 0);
+            throw new AssertionError("a negative capacity must be rejected");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package algos;
 
-import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import algos.hll.DenseHyperLogLog;
 
 import java.io.File;
 import java.util.function.Supplier;
@@ -21,7 +21,7 @@ public abstract class CardinalityTestBase {
         File f = new File(FILE_NAME);
         if (f.exists()) f.delete();
         persistDataToFile(FILE_NAME, dataSetSize, supplier, false);
-        HyperLogLogPlus hll = makeHLLFromFile(FILE_NAME);
+        DenseHyperLogLog hll = makeHLLFromFile(FILE_NAME);
         final int actualDeviation = Math.abs(new Long(hll.cardinality()).intValue() - dataSetSize);
         System.out.println(
                 String.format("Got cardinality %1$d and deviation %2$d on dataset of size %3$d", hll.cardinality(), actualDeviation, dataSetSize)
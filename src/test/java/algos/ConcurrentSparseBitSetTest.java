@@ -0,0 +1,84 @@
+package algos;
+
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4ClassRunner.class)
+public class ConcurrentSparseBitSetTest {
+
+    @Test
+    public void threadsSettingBitsOfOneSetLoseNothing() throws Exception {
+        final int THREADS = 8;
+        final int PER_THREAD = 200_000;
+        // all threads write into the same narrow range, so they keep racing for the same words and blocks
+        final int[][] indices = new int[THREADS][];
+        for (int t = 0; t < THREADS; t++) {
+            indices[t] = new Random(t).ints(PER_THREAD, 0, 1 << 20).toArray();
+        }
+        ConcurrentSparseBitSet concurrent = new ConcurrentSparseBitSet();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            Future<?>[] futures = IntStream.range(0, THREADS)
+                    .mapToObj(t -> executor.submit(() -> concurrent.setAll(indices[t], 0, PER_THREAD)))
+                    .toArray(Future<?>[]::new);
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        SparseBitSet expected = new SparseBitSet();
+        for (int[] threadIndices : indices) {
+            for (int i : threadIndices) expected.set(i);
+        }
+        assertEquals(expected.cardinality(), concurrent.cardinality());
+        assertEquals(expected, concurrent.toSparseBitSet());
+        assertEquals(expected.cardinality(), concurrent.toSparseBitSet().cardinality());
+    }
+
+    @Test
+    public void behavesLikeBitSet() {
+        final Random random = new Random(3);
+        ConcurrentSparseBitSet concurrent = new ConcurrentSparseBitSet();
+        BitSet expected = new BitSet();
+        for (int step = 0; step < 50_000; step++) {
+            int index = random.nextInt(SparseBitSetTest.RANGE);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.get(index), concurrent.clear(index));
+                expected.clear(index);
+            } else {
+                assertEquals(!expected.get(index), concurrent.set(index));
+                expected.set(index);
+            }
+        }
+        concurrent.set(Integer.MAX_VALUE - 1);
+        expected.set(Integer.MAX_VALUE - 1);
+        assertEquals(expected.cardinality(), concurrent.cardinality());
+        for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i + 1)) {
+            assertTrue(concurrent.get(i));
+            assertEquals(i, concurrent.nextSetBit(i));
+            assertEquals(expected.nextSetBit(i + 1), concurrent.nextSetBit(i + 1));
+        }
+        assertEquals(expected.nextSetBit(0), concurrent.nextSetBit(0));
+        assertFalse(concurrent.get(Integer.MAX_VALUE - 2));
+
+        SparseBitSet copy = concurrent.toSparseBitSet();
+        assertEquals(expected.cardinality(), copy.cardinality());
+        for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i + 1)) {
+            assertTrue(copy.get(i));
+        }
+    }
+}
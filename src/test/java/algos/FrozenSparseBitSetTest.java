@@ -0,0 +1,308 @@
+package algos;
+
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import algos.utils.SimilarityUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4ClassRunner.class)
+public class FrozenSparseBitSetTest {
+
+    @Test
+    public void snapshotHoldsTheSameBitsAndIgnoresLaterChanges() throws Exception {
+        final Random random = new Random(43);
+        SparseBitSet source = new SparseBitSet();
+        BitSet expected = new BitSet();
+        for (int i = 0; i < 50_000; i++) {
+            int index = random.nextInt(SparseBitSetTest.RANGE);
+            source.set(index);
+            expected.set(index);
+        }
+        // a block and an area which got emptied are dropped from the snapshot
+        source.set(1 << 28);
+        source.clear(1 << 28);
+
+        FrozenSparseBitSet frozen = source.freeze();
+        SparseBitSetTest.assertSameBits(expected, frozen);
+        assertEquals(source, frozen);
+        assertEquals(frozen, source);
+        assertEquals(source.hashCode(), frozen.hashCode());
+        assertEquals(SparseBitSetTest.RANGE / (1 << 16), frozen.bits.length);
+        assertTrue(frozen == frozen.freeze());
+
+        source.set(SparseBitSetTest.RANGE + 1);
+        source.clear(expected.nextSetBit(0));
+        SparseBitSetTest.assertSameBits(expected, frozen);
+        assertTrue(!source.equals(frozen));
+
+        SparseBitSet copy = frozen.clone();
+        assertTrue(!(copy instanceof FrozenSparseBitSet));
+        assertEquals(frozen, copy);
+        copy.set(7);
+        assertEquals(expected.get(7), frozen.get(7));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(frozen);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            SparseBitSetTest.assertSameBits(expected, (SparseBitSet) in.readObject());
+        }
+
+        try {
+            frozen.set(1);
+            fail("a frozen set must reject changes");
+        } catch (UnsupportedOperationException expectedException) {
+            // expected
+        }
+        try {
+            frozen.or(source);
+            fail("a frozen set must reject changes");
+        } catch (UnsupportedOperationException expectedException) {
+            // expected
+        }
+        try {
+            frozen.andParallel(source);
+            fail("a frozen set must reject changes");
+        } catch (UnsupportedOperationException expectedException) {
+            // expected
+        }
+        long[][][] levels = frozen.getBits();
+        levels[0] = null;
+        SparseBitSetTest.assertSameBits(expected, frozen);
+        assertEquals(0, new SparseBitSet().freeze().cardinality());
+    }
+
+    @Test
+    public void concurrentReadersShareOneSnapshot() throws Exception {
+        final Random random = new Random(47);
+        SparseBitSet source = new SparseBitSet();
+        SparseBitSet other = new SparseBitSet();
+        for (int i = 0; i < 200_000; i++) {
+            source.set(random.nextInt(Integer.MAX_VALUE));
+            other.set(random.nextInt(Integer.MAX_VALUE));
+        }
+        for (int i = source.nextSetBit(0); i >= 0; i = source.nextSetBit(i + 1)) {
+            if (random.nextInt(4) == 0) other.set(i);
+        }
+        final SparseBitSet sourceCopy = source.clone();
+        final FrozenSparseBitSet frozen = source.freeze();
+        final FrozenSparseBitSet frozenOther = other.freeze();
+        final int cardinality = sourceCopy.cardinality();
+        final int common = sourceCopy.andCardinality(other);
+        final float similarity = SimilarityUtils.similarity(sourceCopy, other);
+        final int length = sourceCopy.length();
+        final int hash = sourceCopy.hashCode();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int seed = t;
+                readers.add(executor.submit(() -> {
+                    final Random local = new Random(seed);
+                    for (int n = 0; n < 20; n++) {
+                        assertEquals(cardinality, frozen.cardinality());
+                        assertEquals(common, frozen.andCardinality(frozenOther));
+                        assertTrue(frozen.intersects(frozenOther));
+                        assertEquals(similarity, SimilarityUtils.similarity(frozen, frozenOther), 0.0f);
+                        assertEquals(cardinality, frozen.stream().count());
+                        final int k = local.nextInt(cardinality);
+                        final int index = frozen.select(k);
+                        assertEquals(k, frozen.rank(index));
+                        assertTrue(frozen.get(index));
+                        assertEquals(sourceCopy.nextSetBit(index + 1), frozen.nextSetBit(index + 1));
+                        assertEquals(length, frozen.length());
+                        assertEquals(hash, frozen.hashCode());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sharedSnapshotKeepsItsBitsWhileTheSourceChanges() throws Exception {
+        final Random random = new Random(53);
+        SparseBitSet source = new SparseBitSet();
+        BitSet expected = new BitSet();
+        for (int i = 0; i < 20_000; i++) {
+            int index = random.nextInt(SparseBitSetTest.RANGE);
+            source.set(index);
+            expected.set(index);
+        }
+        source.set(1000, 5000);
+        expected.set(1000, 5000);
+
+        final FrozenSparseBitSet first = source.snapshot();
+        final BitSet firstExpected = (BitSet) expected.clone();
+        assertSame(source.bits, first.bits);
+
+        // a single bit change copies the level1 array, one area and one block, nothing else
+        final int far = SparseBitSetTest.RANGE - 1;
+        source.set(3);
+        expected.set(3);
+        assertTrue(source.bits != first.bits);
+        assertTrue(source.bits[0] != first.bits[0]);
+        assertTrue(source.bits[0][0] != first.bits[0][0]);
+        assertSame(first.bits[0][1], source.bits[0][1]);
+        assertSame(first.bits[far >> 16], source.bits[far >> 16]);
+        assertEquals(firstExpected.get(3), first.get(3));
+
+        for (int i = 0; i < 2_000; i++) {
+            int index = random.nextInt(SparseBitSetTest.RANGE);
+            source.clear(index);
+            expected.clear(index);
+            index = random.nextInt(SparseBitSetTest.RANGE);
+            source.flip(index);
+            expected.flip(index);
+        }
+        final int[] batch = new int[500];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = random.nextInt(SparseBitSetTest.RANGE);
+            expected.set(batch[i]);
+        }
+        source.setAll(batch, 0, batch.length);
+        SparseBitSetTest.assertSameBits(firstExpected, first);
+        SparseBitSetTest.assertSameBits(expected, source);
+
+        final FrozenSparseBitSet second = source.snapshot();
+        final BitSet secondExpected = (BitSet) expected.clone();
+        SparseBitSet other = new SparseBitSet();
+        BitSet otherExpected = new BitSet();
+        for (int i = 0; i < 20_000; i++) {
+            int index = random.nextInt(SparseBitSetTest.RANGE << 1);
+            other.set(index);
+            otherExpected.set(index);
+        }
+
+        // readers of the snapshots run while the source keeps changing
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final boolean readFirst = t % 2 == 0;
+                readers.add(executor.submit(() -> {
+                    for (int n = 0; n < 3; n++) {
+                        if (readFirst) SparseBitSetTest.assertSameBits(firstExpected, first);
+                        else SparseBitSetTest.assertSameBits(secondExpected, second);
+                    }
+                    return null;
+                }));
+            }
+            source.or(other);
+            expected.or(otherExpected);
+            source.clear(2000, 3000);
+            expected.clear(2000, 3000);
+            source.andParallel(other);
+            expected.and(otherExpected);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        SparseBitSetTest.assertSameBits(expected, source);
+        SparseBitSetTest.assertSameBits(firstExpected, first);
+        SparseBitSetTest.assertSameBits(secondExpected, second);
+        final int k = secondExpected.cardinality() / 2;
+        assertEquals(k, second.rank(second.select(k)));
+        assertTrue(second == second.snapshot());
+
+        // the level arrays handed out are copies, not the ones shared with the source
+        final long[][][] levels = second.getBits();
+        for (long[][] a2 : levels) {
+            if (a2 == null) continue;
+            for (long[] a3 : a2) {
+                if (a3 != null) Arrays.fill(a3, -1L);
+            }
+        }
+        SparseBitSetTest.assertSameBits(secondExpected, second);
+        SparseBitSetTest.assertSameBits(expected, source);
+
+        source.clear();
+        SparseBitSetTest.assertSameBits(secondExpected, second);
+        assertEquals(secondExpected.cardinality(), second.freeze().cardinality());
+    }
+
+    @Test
+    public void statisticsOfASharedSnapshotWriteNothingShared() throws Exception {
+        SparseBitSet source = new SparseBitSet();
+        source.set(5);
+        source.set(1 << 20);
+        // an emptied block, which a statistics pass of an unshared set would drop
+        source.clear(1 << 20);
+        final long[] emptied = source.bits[(1 << 20) >> 16][0];
+        assertTrue(emptied != null);
+
+        final FrozenSparseBitSet snapshot = source.snapshot();
+        assertEquals(1, snapshot.cardinality());
+        assertSame(emptied, source.bits[(1 << 20) >> 16][0]);
+        assertEquals(1, source.cardinality());
+        assertSame(emptied, snapshot.bits[(1 << 20) >> 16][0]);
+
+        // snapshots read by other threads while the source keeps emptying and filling blocks
+        final int SNAPSHOTS = 200;
+        final BlockingQueue<Object[]> published = new ArrayBlockingQueue<>(SNAPSHOTS);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> reader = executor.submit(() -> {
+                for (int n = 0; n < SNAPSHOTS; n++) {
+                    final Object[] entry = published.take();
+                    final FrozenSparseBitSet frozen = (FrozenSparseBitSet) entry[0];
+                    final BitSet expected = (BitSet) entry[1];
+                    assertEquals(expected.cardinality(), frozen.cardinality());
+                    SparseBitSetTest.assertSameBits(expected, frozen);
+                }
+                return null;
+            });
+            final Random random = new Random(59);
+            final BitSet expected = new BitSet();
+            source.clear();
+            for (int n = 0; n < SNAPSHOTS; n++) {
+                for (int i = 0; i < 500; i++) {
+                    // few bits in many blocks, so that clearing them often empties a block
+                    final int index = random.nextInt(1 << 10) << 12;
+                    if (random.nextBoolean()) {
+                        source.set(index);
+                        expected.set(index);
+                    } else {
+                        source.clear(index);
+                        expected.clear(index);
+                    }
+                }
+                assertEquals(expected.cardinality(), source.cardinality());
+                published.put(new Object[]{source.snapshot(), expected.clone()});
+            }
+            reader.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package algos;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static algos.utils.InMemoryDatasetUtils.generateArray;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4ClassRunner.class)
+public class IndexBitSetDataTest {
+
+    @Test
+    public void setAllGivesTheSameBitSetAsSetVal() {
+        String[] input = generateArray(String.class, () -> UUID.randomUUID().toString(), 10_000);
+        IndexBitSetData perElement = new IndexBitSetData();
+        for (String str : input) {
+            perElement.setVal(str);
+        }
+        IndexBitSetData batch = new IndexBitSetData().setAll(input);
+        assertEquals(perElement, batch);
+        assertEquals(perElement.getBitSet().cardinality(), batch.getBitSet().cardinality());
+        assertEquals(new IndexBitSetData(), new IndexBitSetData().setAll());
+    }
+
+    @Test
+    public void mergeAllGivesTheSameBitSetAsMerge() throws Exception {
+        IndexBitSetData merged = new IndexBitSetData().setAll("a", "b");
+        IndexBitSetData mergedAll = new IndexBitSetData().setAll("a", "b");
+        // the bit set is merged into in place, a reference taken earlier sees the merged bits and keeps its settings
+        SparseBitSet held = mergedAll.getBitSet();
+        held.trackCardinality(true);
+        List<IndexBitSetData> partitions = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            IndexBitSetData partition = new IndexBitSetData()
+                    .setAll(generateArray(String.class, () -> UUID.randomUUID().toString(), 1_000));
+            merged.merge(partition);
+            partitions.add(partition);
+        }
+        mergedAll.mergeAll(partitions);
+        assertEquals(merged, mergedAll);
+        assertEquals(merged.getBitSet().cardinality(), mergedAll.getBitSet().cardinality());
+        assertSame(held, mergedAll.getBitSet());
+        assertEquals(merged.getBitSet(), held);
+        held.set(0);
+        assertEquals(merged.getBitSet().cardinality() + (merged.getBitSet().get(0) ? 0 : 1), held.cardinality());
+    }
+
+    @Test
+    public void estimatedDistinctCorrectsTheCollisionsOfASmallBitSpace() throws Exception {
+        final int count = 300_000;
+        String[] input = generateArray(String.class, () -> UUID.randomUUID().toString(), count);
+        IndexBitSetData small = new IndexBitSetData(IndexBitSetData.MIN_LOG2_BITS).setAll(input);
+        assertEquals(1 << IndexBitSetData.MIN_LOG2_BITS, small.getBitSpace());
+        // about 13% of the values share a bit with another one
+        assertTrue(small.getBitSet().cardinality() < count * 0.9);
+        assertEquals(count, small.estimatedDistinct(), count * 10 * small.estimatedError());
+        assertTrue(small.estimatedError() < 0.001);
+
+        IndexBitSetData full = new IndexBitSetData().setAll(input);
+        assertEquals(count, full.estimatedDistinct(), 10);
+        assertEquals(0, new IndexBitSetData().estimatedDistinct());
+
+        IndexBitSetData other = new IndexBitSetData(IndexBitSetData.MIN_LOG2_BITS).setAll("a");
+        assertEquals(small.getBitSet().cardinality() + (small.getBitSet().intersects(other.getBitSet()) ? 0 : 1),
+                other.merge(small).getBitSet().cardinality());
+        try {
+            full.merge(small);
+            fail("indices of different bit spaces must not be merged");
+        } catch (CardinalityMergeException expected) {
+            // expected
+        }
+        try {
+            new IndexBitSetData(IndexBitSetData.MAX_LOG2_BITS + 1);
+            fail("the bit space must be bounded");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void setAllMatchesSetValOnLargeBatches() {
+        final int BATCH_SIZE = 1_000_000;
+        final int BATCHES = 5;
+        String[] input = generateArray(String.class, () -> UUID.randomUUID().toString(), BATCH_SIZE);
+        IndexBitSetData perElement = new IndexBitSetData();
+        for (String str : input) {
+            perElement.setVal(str);
+        }
+        IndexBitSetData batch = new IndexBitSetData().setAll(input);
+        assertEquals(perElement, batch);
+        assertEquals(perElement.getBitSet().cardinality(), batch.getBitSet().cardinality());
+
+        // the timings are only reported, they depend too much on the machine to be asserted
+        long perElementMillis = measureSetVal(input, BATCHES);
+        long batchMillis = measureSetAll(input, BATCHES);
+        System.out.println(
+                String.format("%1$d batches of %2$d values: setVal takes %3$d ms, setAll takes %4$d ms", BATCHES, BATCH_SIZE, perElementMillis, batchMillis)
+        );
+    }
+
+    private static long measureSetVal(String[] input, int batches) {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < batches; i++) {
+            IndexBitSetData bitSetData = new IndexBitSetData();
+            for (String str : input) {
+                bitSetData.setVal(str);
+            }
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static long measureSetAll(String[] input, int batches) {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < batches; i++) {
+            new IndexBitSetData().setAll(input);
+        }
+        return System.currentTimeMillis() - start;
+    }
+}
@@ -144,7 +144,7 @@ public class JaccardSimilarityHLLvsBitSetTest extends JaccardSimilarityTestBase
         final int INPUT_1_SIZE = 10_000;
         final int INPUT_2_SIZE = 50_000;
 
-        final float[] MIN_EXPECTED_DEVIATIONS = new float[] { 0.23F, 0.21F, 0.08F, 0.28F };
+        final float[] MIN_EXPECTED_DEVIATIONS = new float[] { 0.23F, 0.21F, 0.078F, 0.28F };
         final float[] MAX_EXPECTED_DEVIATIONS = new float[] { 0.24F, 0.22F, 0.09F, 0.29F };
         final float[] DUPLICATES = new float[] { DUPLICATES_00, DUPLICATES_01, DUPLICATES_05, DUPLICATES_09 };
         for (int i = 0; i < DUPLICATES.length; i++) {
@@ -1,9 +1,9 @@
 package algos;
 
 import algos.SparseBitSet;
+import algos.hll.DenseHyperLogLog;
 import com.carrotsearch.sizeof.RamUsageEstimator;
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
-import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
 import algos.utils.SimilarityUtils;
 
 import java.io.File;
@@ -53,8 +53,8 @@ public abstract class JaccardSimilarityTestBase {
         );
         String[] input1 = generateArray(String.class, supplier1, input1Rows);
         String[] input2 = generateSimilarArray(String.class, input1, input2Rows, supplier2, similarity);
-        HyperLogLogPlus hll1 = measure(SimilarityUtils::createHLL, input1, "Hyper Log Log 1");
-        HyperLogLogPlus hll2 = measure(SimilarityUtils::createHLL, input2, "Hyper Log Log 2");
+        DenseHyperLogLog hll1 = measure(SimilarityUtils::createHLL, input1, "Hyper Log Log 1");
+        DenseHyperLogLog hll2 = measure(SimilarityUtils::createHLL, input2, "Hyper Log Log 2");
         float hllSimilarity = SimilarityUtils.similarity(hll2, hll1);
         System.out.println(
                 String.format("HLL similarity = %1$f, deviation = %2$f", hllSimilarity, getDeviation(similarity, hllSimilarity))
@@ -134,8 +134,8 @@ public abstract class JaccardSimilarityTestBase {
         persistDataToFile(FILE_NAME_1, input1Rows, supplier1, false);
         generateSimilarArrayToFile(FILE_NAME_1, FILE_NAME_2, input2Rows, similarity, supplier2);
 
-        HyperLogLogPlus hll1 = makeHLLFromFile(FILE_NAME_1);
-        HyperLogLogPlus hll2 = makeHLLFromFile(FILE_NAME_2);
+        DenseHyperLogLog hll1 = makeHLLFromFile(FILE_NAME_1);
+        DenseHyperLogLog hll2 = makeHLLFromFile(FILE_NAME_2);
         float hllSimilarity = SimilarityUtils.similarity(hll2, hll1);
         System.out.println(
                 String.format("HLL similarity = %1$f, deviation = %2$f", hllSimilarity, getDeviation(similarity, hllSimilarity))
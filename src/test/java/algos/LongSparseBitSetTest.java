@@ -0,0 +1,131 @@
+package algos;
+
+import algos.utils.HashUtils;
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4ClassRunner.class)
+public class LongSparseBitSetTest {
+
+    private static final long MASK_48 = (1L << 48) - 1;
+
+    @Test
+    public void bitOperationsMatchASortedSet() throws Exception {
+        final Random random = new Random(61);
+        LongSparseBitSet a = new LongSparseBitSet();
+        LongSparseBitSet b = new LongSparseBitSet();
+        TreeSet<Long> expectedA = new TreeSet<>();
+        TreeSet<Long> expectedB = new TreeSet<>();
+        for (int i = 0; i < 50_000; i++) {
+            long index = random.nextLong() & MASK_48;
+            a.set(index);
+            expectedA.add(index);
+            // a few values close to each other, and some shared with a
+            index = random.nextInt(4) == 0 ? index : (random.nextLong() & ((1L << 34) - 1));
+            b.set(index);
+            expectedB.add(index);
+        }
+        a.set(Long.MAX_VALUE);
+        expectedA.add(Long.MAX_VALUE);
+        final long[] batch = new long[20_000];
+        for (int i = 0; i < batch.length; i++) {
+            // dense enough for bitmap blocks
+            batch[i] = (1L << 40) + random.nextInt(1 << 18);
+        }
+        b.setAll(batch, 0, batch.length);
+        a.setAll(batch, 0, batch.length / 2);
+        for (int i = 0; i < batch.length / 2; i++) expectedA.add(batch[i]);
+        for (long index : batch) expectedB.add(index);
+        assertSameBits(expectedA, a);
+        assertSameBits(expectedB, b);
+
+        TreeSet<Long> common = new TreeSet<>(expectedA);
+        common.retainAll(expectedB);
+        assertEquals(common.size(), a.andCardinality(b));
+
+        LongSparseBitSet or = a.clone();
+        or.or(b);
+        TreeSet<Long> union = new TreeSet<>(expectedA);
+        union.addAll(expectedB);
+        assertSameBits(union, or);
+
+        LongSparseBitSet and = a.clone();
+        and.and(b);
+        assertSameBits(common, and);
+
+        LongSparseBitSet andNot = a.clone();
+        andNot.andNot(b);
+        TreeSet<Long> difference = new TreeSet<>(expectedA);
+        difference.removeAll(expectedB);
+        assertSameBits(difference, andNot);
+
+        LongSparseBitSet xor = a.clone();
+        xor.xor(b);
+        TreeSet<Long> symmetric = new TreeSet<>(union);
+        symmetric.removeAll(common);
+        assertSameBits(symmetric, xor);
+
+        assertEquals(a, a.clone());
+        assertEquals(a.hashCode(), a.clone().hashCode());
+        assertFalse(a.equals(b));
+        final long first = expectedA.first();
+        LongSparseBitSet flipped = a.clone();
+        flipped.flip(first);
+        assertFalse(flipped.get(first));
+        flipped.flip(first);
+        assertEquals(a, flipped);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(a);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            LongSparseBitSet copy = (LongSparseBitSet) in.readObject();
+            assertSameBits(expectedA, copy);
+            assertEquals(a, copy);
+        }
+
+        a.clear();
+        assertTrue(a.isEmpty());
+        assertEquals(0, a.length());
+        assertEquals(-1, a.nextSetBit(0));
+    }
+
+    @Test
+    public void maskedHash64ValuesDontCollide() {
+        final int count = 1_000_000;
+        LongSparseBitSet bits = new LongSparseBitSet();
+        for (int i = 0; i < count; i++) {
+            bits.set(HashUtils.murmurHash64("value-" + i) & MASK_48);
+        }
+        assertEquals(count, bits.cardinality());
+    }
+
+    private static void assertSameBits(TreeSet<Long> expected, LongSparseBitSet actual) {
+        assertEquals(expected.size(), actual.cardinality());
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        assertEquals(expected.isEmpty() ? 0 : expected.last() + 1, actual.length());
+        long index = actual.nextSetBit(0);
+        for (long value : expected) {
+            assertEquals(value, index);
+            assertTrue(actual.get(value));
+            if (value < Long.MAX_VALUE) {
+                assertEquals(expected.contains(value + 1), actual.get(value + 1));
+                index = actual.nextSetBit(value + 1);
+            }
+        }
+        if (expected.isEmpty() || expected.last() < Long.MAX_VALUE) assertEquals(-1, index);
+    }
+}
@@ -0,0 +1,117 @@
+package algos;
+
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4ClassRunner.class)
+public class MappedSparseBitSetTest {
+
+    @Test
+    public void mappedFileAnswersLikeTheWrittenSet() throws IOException {
+        SparseBitSet bitSet = randomBitSet(new Random(1), 100_000);
+        bitSet.set(Integer.MAX_VALUE - 1);
+        // a block which got emptied isn't written
+        bitSet.set(1 << 20);
+        bitSet.clear(1 << 20);
+        Path file = Files.createTempFile("sparse-bit-set", ".sbs");
+        try {
+            MappedSparseBitSet.write(bitSet, file);
+            MappedSparseBitSet mapped = MappedSparseBitSet.open(file);
+            assertEquals(bitSet.cardinality(), mapped.cardinality());
+            assertEquals(bitSet.length(), mapped.length());
+            assertEquals(bitSet.nextSetBit(0), mapped.nextSetBit(0));
+            for (int i = bitSet.nextSetBit(0); i >= 0 && i < Integer.MAX_VALUE - 1; i = bitSet.nextSetBit(i + 1)) {
+                assertEquals(true, mapped.get(i));
+                assertEquals(bitSet.get(i + 1), mapped.get(i + 1));
+                assertEquals(bitSet.nextSetBit(i + 1), mapped.nextSetBit(i + 1));
+            }
+            assertEquals(true, mapped.get(Integer.MAX_VALUE - 1));
+            assertEquals(-1, mapped.nextSetBit(Integer.MAX_VALUE));
+            assertEquals(bitSet.nextSetBit(1 << 20), mapped.nextSetBit(1 << 20));
+            assertEquals(bitSet, mapped.toSparseBitSet());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void andOrIntoHeapSetMatchSparseBitSet() throws IOException {
+        final Random random = new Random(2);
+        SparseBitSet stored = randomBitSet(random, 50_000);
+        SparseBitSet other = randomBitSet(random, 50_000);
+        for (int i = stored.nextSetBit(0); i >= 0 && i < SparseBitSetTest.RANGE / 2; i = stored.nextSetBit(i + 1)) {
+            other.set(i);
+        }
+        Path file = Files.createTempFile("sparse-bit-set", ".sbs");
+        try {
+            MappedSparseBitSet.write(stored, file);
+            MappedSparseBitSet mapped = MappedSparseBitSet.open(file);
+
+            SparseBitSet expectedAnd = other.clone();
+            expectedAnd.and(stored);
+            SparseBitSet actualAnd = other.clone();
+            actualAnd.trackCardinality(true);
+            mapped.andInto(actualAnd);
+            // the count is only recomputed when asked for, and then kept up to date again
+            assertEquals(-1, actualAnd.cache.liveCardinality);
+            assertEquals(expectedAnd, actualAnd);
+            assertEquals(expectedAnd.cardinality(), actualAnd.cardinality());
+            assertEquals(expectedAnd.cardinality(), actualAnd.cache.liveCardinality);
+            int unset = actualAnd.nextClearBit(0);
+            actualAnd.set(unset);
+            assertEquals(expectedAnd.cardinality() + 1, actualAnd.cache.liveCardinality);
+
+            SparseBitSet expectedOr = other.clone();
+            expectedOr.or(stored);
+            SparseBitSet actualOr = other.clone();
+            mapped.orInto(actualOr);
+            assertEquals(expectedOr, actualOr);
+            assertEquals(expectedOr.cardinality(), actualOr.cardinality());
+
+            SparseBitSet small = new SparseBitSet(1);
+            mapped.orInto(small);
+            assertEquals(stored, small);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void emptySetAndForeignFile() throws IOException {
+        Path file = Files.createTempFile("sparse-bit-set", ".sbs");
+        try {
+            MappedSparseBitSet.write(new SparseBitSet(), file);
+            MappedSparseBitSet mapped = MappedSparseBitSet.open(file);
+            assertEquals(0, mapped.cardinality());
+            assertEquals(-1, mapped.nextSetBit(0));
+            assertEquals(false, mapped.get(100));
+
+            Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20});
+            try {
+                MappedSparseBitSet.open(file);
+                fail("foreign file must be rejected");
+            } catch (IOException expected) {
+                // expected
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static SparseBitSet randomBitSet(Random random, int bits) {
+        SparseBitSet bitSet = new SparseBitSet();
+        for (int i = 0; i < bits; i++) {
+            bitSet.set(random.nextInt(SparseBitSetTest.RANGE));
+        }
+        return bitSet;
+    }
+}
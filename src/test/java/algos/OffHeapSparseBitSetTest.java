@@ -0,0 +1,139 @@
+package algos;
+
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.BitSet;
+import java.util.Random;
+
+import static algos.SparseBitSet.LENGTH3;
+import static algos.SparseBitSet.SHIFT3;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4ClassRunner.class)
+public class OffHeapSparseBitSetTest {
+
+    @Test
+    public void behavesLikeBitSet() {
+        final Random random = new Random(11);
+        try (OffHeapSparseBitSet offHeap = new OffHeapSparseBitSet()) {
+            BitSet expected = new BitSet();
+            for (int step = 0; step < 100_000; step++) {
+                int index = random.nextInt(SparseBitSetTest.RANGE);
+                if (random.nextInt(3) == 0) {
+                    offHeap.clear(index);
+                    expected.clear(index);
+                } else {
+                    offHeap.set(index);
+                    expected.set(index);
+                }
+            }
+            offHeap.set(Integer.MAX_VALUE - 1);
+            expected.set(Integer.MAX_VALUE - 1);
+            assertSameBits(expected, offHeap);
+        }
+    }
+
+    @Test
+    public void orAndMatchBitSet() {
+        final Random random = new Random(5);
+        OffHeapSparseBitSet a = new OffHeapSparseBitSet();
+        OffHeapSparseBitSet b = new OffHeapSparseBitSet();
+        BitSet expectedA = new BitSet();
+        BitSet expectedB = new BitSet();
+        for (int i = 0; i < 50_000; i++) {
+            int indexA = random.nextInt(SparseBitSetTest.RANGE);
+            a.set(indexA);
+            expectedA.set(indexA);
+            int indexB = random.nextInt(SparseBitSetTest.RANGE);
+            b.set(indexB);
+            expectedB.set(indexB);
+        }
+
+        OffHeapSparseBitSet union = new OffHeapSparseBitSet();
+        union.or(a);
+        union.or(b);
+        BitSet expectedUnion = (BitSet) expectedA.clone();
+        expectedUnion.or(expectedB);
+        assertSameBits(expectedUnion, union);
+
+        long bytesBefore = a.offHeapBytes();
+        a.and(b);
+        expectedA.and(expectedB);
+        assertSameBits(expectedA, a);
+        // emptied blocks are reused instead of growing the slabs
+        for (int i = 0; i < 50_000; i++) {
+            int index = random.nextInt(SparseBitSetTest.RANGE);
+            a.set(index);
+            expectedA.set(index);
+        }
+        assertSameBits(expectedA, a);
+        assertEquals(bytesBefore, a.offHeapBytes());
+        a.close();
+        b.close();
+        union.close();
+    }
+
+    @Test
+    public void convertsToAndFromSparseBitSet() {
+        final Random random = new Random(9);
+        SparseBitSet heap = new SparseBitSet();
+        for (int i = 0; i < 50_000; i++) {
+            heap.set(random.nextInt(SparseBitSetTest.RANGE));
+        }
+        try (OffHeapSparseBitSet offHeap = new OffHeapSparseBitSet(heap)) {
+            assertEquals(heap.cardinality(), offHeap.cardinality());
+            assertEquals(heap, offHeap.toSparseBitSet());
+        }
+    }
+
+    @Test
+    public void closeFreesTheDirectMemory() {
+        final BufferPoolMXBean direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct"))
+                .findFirst()
+                .get();
+        final long usedBefore = direct.getMemoryUsed();
+        OffHeapSparseBitSet offHeap = new OffHeapSparseBitSet();
+        // one bit per block, over 4 slabs
+        for (int i = 0; i < 1 << 27; i += LENGTH3 << SHIFT3) {
+            offHeap.set(i);
+        }
+        final long bytes = offHeap.offHeapBytes();
+        assertEquals(4L * OffHeapSparseBitSet.SLAB_BLOCKS * LENGTH3 * Long.BYTES, bytes);
+        assertTrue(direct.getMemoryUsed() >= usedBefore + bytes);
+
+        offHeap.close();
+        // without a garbage collection, so the slabs were freed by close itself
+        assertTrue(direct.getMemoryUsed() <= usedBefore);
+        assertEquals(0, offHeap.offHeapBytes());
+        assertEquals(0, offHeap.cardinality());
+        assertEquals(-1, offHeap.nextSetBit(0));
+        assertFalse(offHeap.get(LENGTH3 << SHIFT3));
+        offHeap.close();
+
+        try {
+            offHeap.set(42);
+            fail("a closed set must not allocate new slabs");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+        assertFalse(offHeap.get(42));
+    }
+
+    private static void assertSameBits(BitSet expected, OffHeapSparseBitSet actual) {
+        assertEquals(expected.cardinality(), actual.cardinality());
+        assertEquals(expected.nextSetBit(0), actual.nextSetBit(0));
+        for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i + 1)) {
+            assertEquals(true, actual.get(i));
+            assertEquals(expected.nextSetBit(i + 1), actual.nextSetBit(i + 1));
+        }
+        assertEquals(expected.cardinality(), actual.toSparseBitSet().cardinality());
+    }
+}
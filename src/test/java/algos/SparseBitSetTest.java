@@ -0,0 +1,489 @@
+package algos;
+
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.sizeof.RamUsageEstimator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks SparseBitSet against java.util.BitSet holding the same bits
+ */
+@RunWith(JUnit4ClassRunner.class)
+public class SparseBitSetTest {
+
+    static final int RANGE = 1 << 22;
+
+    @Test
+    public void trackedCardinalityIsExactWhileBitsChange() {
+        final Random random = new Random(7);
+        SparseBitSet sparseBitSet = new SparseBitSet();
+        BitSet expected = new BitSet();
+        for (int i = 0; i < 1000; i++) {
+            int index = random.nextInt(RANGE);
+            sparseBitSet.set(index);
+            expected.set(index);
+        }
+        sparseBitSet.trackCardinality(true);
+        assertEquals(expected.cardinality(), sparseBitSet.cardinality());
+        for (int step = 0; step < 20_000; step++) {
+            int index = random.nextInt(RANGE);
+            switch (random.nextInt(10)) {
+                case 0:
+                case 1:
+                case 2:
+                    sparseBitSet.set(index);
+                    expected.set(index);
+                    break;
+                case 3:
+                case 4:
+                    sparseBitSet.clear(index);
+                    expected.clear(index);
+                    break;
+                case 5:
+                case 6:
+                    sparseBitSet.flip(index);
+                    expected.flip(index);
+                    break;
+                case 7:
+                    int[] indices = random.ints(random.nextInt(20), 0, RANGE).toArray();
+                    sparseBitSet.setAll(indices, 0, indices.length);
+                    for (int i : indices) expected.set(i);
+                    break;
+                case 8:
+                    int end = index + random.nextInt(300);
+                    sparseBitSet.set(index, end);
+                    expected.set(index, end);
+                    break;
+                default:
+                    int to = index + random.nextInt(300);
+                    sparseBitSet.clear(index, to);
+                    expected.clear(index, to);
+            }
+            assertEquals(expected.cardinality(), sparseBitSet.cardinality());
+            if (step % 1000 == 0) {
+                // full scan must agree with the running count
+                sparseBitSet.hashCode();
+                assertEquals(expected.cardinality(), sparseBitSet.cache.cardinality);
+                assertEquals(expected.cardinality(), sparseBitSet.cache.liveCardinality);
+            }
+        }
+        sparseBitSet.clear();
+        assertEquals(0, sparseBitSet.cardinality());
+        assertTrue(sparseBitSet.isEmpty());
+        sparseBitSet.set(10);
+        assertEquals(1, sparseBitSet.cardinality());
+        sparseBitSet.trackCardinality(false);
+        assertEquals(-1, sparseBitSet.cache.liveCardinality);
+        sparseBitSet.set(11);
+        assertEquals(2, sparseBitSet.cardinality());
+    }
+
+    @Test
+    public void operationsMatchBitSetOnSparseAndDenseBlocks() throws Exception {
+        final Random random = new Random(13);
+        for (int round = 0; round < 30; round++) {
+            SparseBitSet a = new SparseBitSet();
+            SparseBitSet b = new SparseBitSet();
+            BitSet expectedA = new BitSet();
+            BitSet expectedB = new BitSet();
+            fill(random, a, expectedA);
+            fill(random, b, expectedB);
+            assertSameBits(expectedA, a);
+            assertSameBits(expectedB, b);
+            assertEquals(expectedA.intersects(expectedB), a.intersects(b));
+            assertEquals(a, a.clone());
+            assertSameBits(expectedA, a.clone());
+
+            final SparseBitSet result = a.clone();
+            final BitSet expected = (BitSet) expectedA.clone();
+            switch (round % 4) {
+                case 0:
+                    result.and(b);
+                    expected.and(expectedB);
+                    break;
+                case 1:
+                    result.or(b);
+                    expected.or(expectedB);
+                    break;
+                case 2:
+                    result.xor(b);
+                    expected.xor(expectedB);
+                    break;
+                default:
+                    result.andNot(b);
+                    expected.andNot(expectedB);
+            }
+            assertSameBits(expected, result);
+            // the operand is never changed
+            assertSameBits(expectedB, b);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(result);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                assertSameBits(expected, (SparseBitSet) in.readObject());
+            }
+        }
+    }
+
+    @Test
+    public void combinedCardinalitiesMatchMaterializedResults() {
+        final Random random = new Random(19);
+        for (int round = 0; round < 20; round++) {
+            SparseBitSet a = new SparseBitSet();
+            SparseBitSet b = new SparseBitSet();
+            BitSet expectedA = new BitSet();
+            BitSet expectedB = new BitSet();
+            fill(random, a, expectedA);
+            fill(random, b, expectedB);
+            // every other round leaves b much shorter than a
+            if (round % 2 == 0) {
+                b.clear(RANGE / 4, RANGE);
+                expectedB.clear(RANGE / 4, RANGE);
+            }
+
+            BitSet expected = (BitSet) expectedA.clone();
+            expected.and(expectedB);
+            assertEquals(expected.cardinality(), a.andCardinality(b));
+            assertEquals(expected.cardinality(), b.andCardinality(a));
+            expected = (BitSet) expectedA.clone();
+            expected.or(expectedB);
+            assertEquals(expected.cardinality(), a.orCardinality(b));
+            expected = (BitSet) expectedA.clone();
+            expected.andNot(expectedB);
+            assertEquals(expected.cardinality(), a.andNotCardinality(b));
+            // nothing is materialized into the operands
+            assertSameBits(expectedA, a);
+            assertSameBits(expectedB, b);
+        }
+        assertEquals(0, new SparseBitSet().andCardinality(new SparseBitSet(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void parallelOrAndMatchSequentialOperations() {
+        final Random random = new Random(23);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int round = 0; round < 6; round++) {
+                SparseBitSet a = new SparseBitSet();
+                SparseBitSet b = new SparseBitSet();
+                fill(random, a, new BitSet());
+                fill(random, b, new BitSet());
+                // hashed bits over the whole range, so that the level1 entries are split into many slices
+                for (int i = 0; i < 100_000; i++) {
+                    a.set(random.nextInt(Integer.MAX_VALUE));
+                    b.set(random.nextInt(round % 2 == 0 ? Integer.MAX_VALUE : Integer.MAX_VALUE / 8));
+                }
+                for (int i = b.nextSetBit(0); i >= 0; i = b.nextSetBit(i + 1)) {
+                    if (random.nextInt(3) == 0) a.set(i);
+                }
+                final SparseBitSet bCopy = b.clone();
+
+                SparseBitSet expected = a.clone();
+                expected.or(b);
+                SparseBitSet actual = a.clone();
+                actual.orParallel(b, pool);
+                assertEquals(expected, actual);
+                assertEquals(expected.cardinality(), actual.cardinality());
+                actual = b.clone();
+                actual.orParallel(a);
+                assertEquals(expected, actual);
+
+                expected = a.clone();
+                expected.and(b);
+                actual = a.clone();
+                actual.trackCardinality(true);
+                actual.andParallel(b, pool);
+                assertEquals(expected, actual);
+                assertEquals(expected.cardinality(), actual.cardinality());
+                actual = b.clone();
+                actual.andParallel(a);
+                assertEquals(expected, actual);
+                assertEquals(expected.length(), actual.length());
+
+                assertEquals(bCopy, b);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void orAllAndAllMatchPairwiseOperations() {
+        final Random random = new Random(29);
+        List<SparseBitSet> sets = new ArrayList<>();
+        BitSet expectedOr = new BitSet();
+        BitSet expectedAnd = null;
+        for (int k = 0; k < 12; k++) {
+            SparseBitSet sparseBitSet = new SparseBitSet();
+            BitSet expected = new BitSet();
+            fill(random, sparseBitSet, expected);
+            // a common range, so that the AND of all the sets isn't empty
+            sparseBitSet.set(100_000 + k, 200_000);
+            expected.set(100_000 + k, 200_000);
+            sets.add(sparseBitSet);
+            expectedOr.or(expected);
+            if (expectedAnd == null) {
+                expectedAnd = expected;
+            } else {
+                expectedAnd.and(expected);
+            }
+        }
+        // a much shorter set still takes part in both
+        SparseBitSet shortSet = new SparseBitSet(1);
+        shortSet.set(150_000, 151_000);
+        shortSet.set(3);
+        sets.add(shortSet);
+        expectedOr.set(150_000, 151_000);
+        expectedOr.set(3);
+        BitSet shortExpected = new BitSet();
+        shortExpected.set(150_000, 151_000);
+        shortExpected.set(3);
+        expectedAnd.and(shortExpected);
+
+        assertSameBits(expectedOr, SparseBitSet.orAll(sets));
+        assertSameBits(expectedAnd, SparseBitSet.andAll(sets));
+        assertEquals(sets.get(0), SparseBitSet.orAll(sets.subList(0, 1)));
+        assertEquals(sets.get(0), SparseBitSet.andAll(sets.subList(0, 1)));
+        assertTrue(SparseBitSet.orAll(new ArrayList<>()).isEmpty());
+
+        // in place, into a set holding bitmaps and array containers of its own, which may be among the sets
+        SparseBitSet target = sets.get(1).clone();
+        target.set(1 << 30);
+        target.trackCardinality(true);
+        List<SparseBitSet> others = new ArrayList<>(sets);
+        others.add(target);
+        target.or(others);
+        expectedOr.set(1 << 30);
+        assertSameBits(expectedOr, target);
+        assertEquals(expectedOr.cardinality(), target.cardinality());
+        target.set((1 << 30) + 1);
+        assertEquals(expectedOr.cardinality() + 1, target.cardinality());
+        SparseBitSet shortTarget = new SparseBitSet(1);
+        shortTarget.or(sets);
+        assertEquals(SparseBitSet.orAll(sets), shortTarget);
+        assertTrue(SparseBitSet.andAll(new ArrayList<>()).isEmpty());
+    }
+
+    @Test
+    public void iteratorAndDrainToMatchNextSetBit() {
+        final Random random = new Random(31);
+        for (int round = 0; round < 10; round++) {
+            SparseBitSet sparseBitSet = new SparseBitSet();
+            BitSet expected = new BitSet();
+            fill(random, sparseBitSet, expected);
+            if (round % 2 == 0) {
+                sparseBitSet.set(Integer.MAX_VALUE - 1);
+                expected.set(Integer.MAX_VALUE - 1);
+            }
+            final int[] expectedIndices = expected.stream().toArray();
+
+            PrimitiveIterator.OfInt iterator = sparseBitSet.iterator();
+            for (int index : expectedIndices) {
+                assertTrue(iterator.hasNext());
+                assertEquals(index, iterator.nextInt());
+            }
+            assertEquals(false, iterator.hasNext());
+            try {
+                iterator.nextInt();
+                fail("iterator must be exhausted");
+            } catch (NoSuchElementException expectedException) {
+                // expected
+            }
+            assertArrayEquals(expectedIndices, sparseBitSet.stream().toArray());
+
+            final int[] buffer = new int[1 + random.nextInt(2000)];
+            final int[] drained = new int[expectedIndices.length];
+            int total = 0;
+            for (int n, i = 0; (n = sparseBitSet.drainTo(buffer, i)) != 0; i = buffer[n - 1] + 1) {
+                System.arraycopy(buffer, 0, drained, total, n);
+                total += n;
+                if (n < buffer.length) break;
+            }
+            assertEquals(expectedIndices.length, total);
+            assertArrayEquals(expectedIndices, drained);
+            final int from = random.nextInt(RANGE);
+            final int n = sparseBitSet.drainTo(buffer, from);
+            for (int k = 0, i = expected.nextSetBit(from); k < buffer.length; k++, i = expected.nextSetBit(i + 1)) {
+                if (i < 0) {
+                    assertEquals(k, n);
+                    break;
+                }
+                assertEquals(i, buffer[k]);
+            }
+        }
+        assertEquals(0, new SparseBitSet().drainTo(new int[10], 0));
+        assertEquals(false, new SparseBitSet().iterator().hasNext());
+    }
+
+    @Test
+    public void parallelStreamCoversEverySetBit() {
+        final Random random = new Random(37);
+        SparseBitSet sparseBitSet = new SparseBitSet();
+        BitSet expected = new BitSet();
+        fill(random, sparseBitSet, expected);
+        for (int i = 0; i < 200_000; i++) {
+            int index = random.nextInt(Integer.MAX_VALUE);
+            sparseBitSet.set(index);
+            expected.set(index);
+        }
+        final int[] expectedIndices = expected.stream().toArray();
+        assertArrayEquals(expectedIndices, sparseBitSet.stream().parallel().toArray());
+        assertEquals(expectedIndices.length, sparseBitSet.stream().parallel().count());
+        assertEquals(expected.stream().asLongStream().sum(), sparseBitSet.stream().parallel().asLongStream().sum());
+
+        // the estimates of the parts add up to the cardinality
+        Spliterator.OfInt whole = sparseBitSet.stream().spliterator();
+        assertEquals(expectedIndices.length, whole.getExactSizeIfKnown());
+        Spliterator.OfInt prefix = whole.trySplit();
+        assertTrue(prefix != null);
+        assertEquals(-1, whole.getExactSizeIfKnown());
+        assertEquals(expectedIndices.length, prefix.estimateSize() + whole.estimateSize());
+        final int[] count = new int[1];
+        prefix.forEachRemaining((int i) -> count[0]++);
+        whole.forEachRemaining((int i) -> count[0]++);
+        assertEquals(expectedIndices.length, count[0]);
+
+        assertEquals(0, new SparseBitSet().stream().parallel().count());
+    }
+
+    @Test
+    public void rankAndSelectMatchBitSet() {
+        final Random random = new Random(41);
+        SparseBitSet sparseBitSet = new SparseBitSet();
+        BitSet expected = new BitSet();
+        fill(random, sparseBitSet, expected);
+        sparseBitSet.set(Integer.MAX_VALUE - 1);
+        expected.set(Integer.MAX_VALUE - 1);
+        int k = 0;
+        for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i + 1), k++) {
+            assertEquals(i, sparseBitSet.select(k));
+            assertEquals(k, sparseBitSet.rank(i));
+            assertEquals(k + 1, sparseBitSet.rank(i + 1));
+        }
+        assertEquals(-1, sparseBitSet.select(k));
+        assertEquals(k, sparseBitSet.rank(Integer.MAX_VALUE));
+        for (int n = 0; n < 1000; n++) {
+            int i = random.nextInt(RANGE);
+            assertEquals(expected.get(0, i).cardinality(), sparseBitSet.rank(i));
+        }
+
+        // the index is rebuilt after any change
+        int before = sparseBitSet.rank(RANGE);
+        int index = expected.nextClearBit(RANGE / 2);
+        sparseBitSet.set(index);
+        assertEquals(before + 1, sparseBitSet.rank(RANGE));
+        assertEquals(index, sparseBitSet.select(sparseBitSet.rank(index)));
+        sparseBitSet.and(new SparseBitSet());
+        assertEquals(0, sparseBitSet.rank(Integer.MAX_VALUE));
+        assertEquals(-1, sparseBitSet.select(0));
+    }
+
+    @Test
+    public void singleBitOperationsOverflowAndEmptyArrayContainers() {
+        SparseBitSet sparseBitSet = new SparseBitSet();
+        BitSet expected = new BitSet();
+        final int base = 5 * 2048;
+        // fills one block far beyond the largest array container, then empties it again
+        for (int p = 2047; p >= 0; p -= 3) {
+            sparseBitSet.set(base + p);
+            expected.set(base + p);
+            assertEquals(expected.get(base + p - 1), sparseBitSet.get(base + p - 1));
+        }
+        assertSameBits(expected, sparseBitSet);
+        for (int p = 0; p < 2048; p += 2) {
+            sparseBitSet.flip(base + p);
+            expected.flip(base + p);
+        }
+        assertSameBits(expected, sparseBitSet);
+        for (int p = 0; p < 2048; p++) {
+            sparseBitSet.clear(base + p);
+            expected.clear(base + p);
+        }
+        assertSameBits(expected, sparseBitSet);
+        sparseBitSet.flip(base + 7);
+        sparseBitSet.flip(base + 7);
+        sparseBitSet.setAll(new int[]{base + 1, base + 1, base + 9, base + 4000}, 0, 4);
+        expected.set(base + 1);
+        expected.set(base + 9);
+        expected.set(base + 4000);
+        assertSameBits(expected, sparseBitSet);
+    }
+
+    @Test
+    public void hashedBitsTakeAFractionOfTheMemory() {
+        final int BITS = 1_000_000;
+        final Random random = new Random(17);
+        SparseBitSet sparseBitSet = new SparseBitSet(Integer.MAX_VALUE);
+        for (int i = 0; i < BITS; i++) {
+            sparseBitSet.set(random.nextInt(Integer.MAX_VALUE));
+        }
+        final long bytes = RamUsageEstimator.sizeOf(sparseBitSet);
+        // a full block per bit would be over 270 bytes for each of them
+        System.out.println(String.format("%1$d hashed bits take %2$d bytes, %3$.1f bytes per bit",
+                BITS, bytes, (double) bytes / BITS));
+        assertTrue(bytes < 40L * BITS);
+        SparseBitSet copy = sparseBitSet.clone();
+        assertEquals(sparseBitSet, copy);
+        assertTrue(RamUsageEstimator.sizeOf(copy) < 40L * BITS);
+    }
+
+    private static void fill(Random random, SparseBitSet sparseBitSet, BitSet expected) {
+        // hashed-like bits, a few crowded blocks, and some ranges
+        for (int i = 0; i < 2000; i++) {
+            int index = random.nextInt(RANGE);
+            sparseBitSet.set(index);
+            expected.set(index);
+        }
+        for (int i = 0; i < 500; i++) {
+            int index = 3 * 2048 + random.nextInt(4 * 2048);
+            sparseBitSet.set(index);
+            expected.set(index);
+        }
+        int from = random.nextInt(RANGE);
+        int to = from + random.nextInt(10_000);
+        sparseBitSet.set(from, to);
+        expected.set(from, to);
+        from = random.nextInt(RANGE);
+        to = from + random.nextInt(10_000);
+        sparseBitSet.clear(from, to);
+        expected.clear(from, to);
+        from = random.nextInt(RANGE);
+        to = from + random.nextInt(5_000);
+        sparseBitSet.flip(from, to);
+        expected.flip(from, to);
+    }
+
+    static void assertSameBits(BitSet expected, SparseBitSet actual) {
+        assertEquals(expected.cardinality(), actual.cardinality());
+        assertEquals(expected.length(), actual.length());
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        assertEquals(expected.nextSetBit(0), actual.nextSetBit(0));
+        for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i + 1)) {
+            assertTrue(actual.get(i));
+            assertEquals(expected.get(i + 1), actual.get(i + 1));
+            assertEquals(expected.nextSetBit(i + 1), actual.nextSetBit(i + 1));
+            assertEquals(expected.nextClearBit(i), actual.nextClearBit(i));
+        }
+    }
+}
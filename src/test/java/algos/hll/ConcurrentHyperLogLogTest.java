@@ -0,0 +1,109 @@
+package algos.hll;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4ClassRunner.class)
+public class ConcurrentHyperLogLogTest {
+
+    @Test
+    public void threadsOfferingToOneSketchLoseNothing() throws Exception {
+        final int THREADS = 8;
+        final int PER_THREAD = 200_000;
+        final long[][] hashes = new long[THREADS][];
+        for (int t = 0; t < THREADS; t++) {
+            hashes[t] = new Random(t).longs(PER_THREAD).toArray();
+        }
+        // with 16 registers in 2 words the threads keep racing for the same words
+        for (int p : new int[]{DenseHyperLogLog.MIN_PRECISION, DenseHyperLogLog.DEFAULT_PRECISION}) {
+            ConcurrentHyperLogLog concurrent = new ConcurrentHyperLogLog(p);
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                Future<?>[] futures = IntStream.range(0, THREADS)
+                        .mapToObj(t -> executor.submit(() -> {
+                            for (long hash : hashes[t]) concurrent.offerHashed(hash);
+                        }))
+                        .toArray(Future<?>[]::new);
+                for (Future<?> future : futures) future.get();
+            } finally {
+                executor.shutdown();
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+
+            DenseHyperLogLog expected = new DenseHyperLogLog(p);
+            for (long[] threadHashes : hashes) {
+                expected.offerAllHashed(threadHashes);
+            }
+            assertEquals(expected, concurrent.toDenseHyperLogLog());
+            assertEquals(expected.cardinality(), concurrent.cardinality());
+        }
+    }
+
+    @Test
+    public void wordsAreMergedByteByByte() {
+        final Random random = new Random(101);
+        final int maxRank = 64 - DenseHyperLogLog.MIN_PRECISION + 1;
+        for (int i = 0; i < 100_000; i++) {
+            long a = 0;
+            long b = 0;
+            long expected = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += 8) {
+                // the extreme ranks and equal bytes are the likely places for a borrow between bytes
+                long x = random.nextInt(3) == 0 ? (random.nextBoolean() ? 0 : maxRank) : random.nextInt(maxRank + 1);
+                long y = random.nextInt(4) == 0 ? x : random.nextInt(3) == 0 ? maxRank : random.nextInt(maxRank + 1);
+                a |= x << shift;
+                b |= y << shift;
+                expected |= Math.max(x, y) << shift;
+            }
+            assertEquals(Long.toHexString(a) + " " + Long.toHexString(b), expected, ConcurrentHyperLogLog.maxBytes(a, b));
+            assertEquals(expected, ConcurrentHyperLogLog.maxBytes(b, a));
+        }
+    }
+
+    @Test
+    public void mergesWithSingleThreadedSketches() throws CardinalityMergeException {
+        final Random random = new Random(73);
+        DenseHyperLogLog dense = new DenseHyperLogLog();
+        ConcurrentHyperLogLog concurrent = new ConcurrentHyperLogLog();
+        DenseHyperLogLog union = new DenseHyperLogLog();
+        for (int i = 0; i < 100_000; i++) {
+            long hash = random.nextLong();
+            if (i % 3 == 0) {
+                dense.offerHashed(hash);
+            } else {
+                concurrent.offerHashed(hash);
+            }
+            union.offerHashed(hash);
+        }
+        assertTrue(concurrent.offerHashed(0L));
+        assertFalse(concurrent.offerHashed(0L));
+        union.offerHashed(0L);
+
+        assertEquals(union, dense.copy().addAll(concurrent.toDenseHyperLogLog()));
+        ConcurrentHyperLogLog other = new ConcurrentHyperLogLog();
+        other.addAll(concurrent).addAll(dense);
+        assertEquals(union, other.toDenseHyperLogLog());
+        assertEquals(union.cardinality(), other.cardinality());
+        assertTrue(Math.abs(other.cardinality() - 100_001) < 1_000);
+
+        try {
+            other.addAll(new DenseHyperLogLog(12));
+            throw new AssertionError("sketches of different precisions must not be merged");
+        } catch (CardinalityMergeException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package algos.hll;
+
+import algos.utils.HashUtils;
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4ClassRunner.class)
+public class DenseHyperLogLogTest {
+
+    @Test
+    public void estimatesAreAsAccurateAsHyperLogLogPlus() {
+        final int[] counts = {0, 1, 10, 1_000, 10_000, 50_000, 200_000, 1_000_000, 3_000_000};
+        final Random random = new Random(67);
+        for (int count : counts) {
+            DenseHyperLogLog dense = new DenseHyperLogLog();
+            HyperLogLogPlus plus = new HyperLogLogPlus(16);
+            for (int i = 0; i < count; i++) {
+                long hash = random.nextLong();
+                dense.offerHashed(hash);
+                plus.offerHashed(hash);
+            }
+            final double error = relativeError(count, dense.cardinality());
+            final double plusError = relativeError(count, plus.cardinality());
+            // the standard error is 0.4% with 2^16 registers
+            assertTrue(count + ": " + dense.cardinality(), error <= 0.015);
+            assertTrue(count + ": " + dense.cardinality() + " vs " + plus.cardinality(), error <= plusError + 0.01);
+        }
+    }
+
+    @Test
+    public void smallPrecisionsStayWithinTheirStandardError() {
+        for (int p = DenseHyperLogLog.MIN_PRECISION; p <= DenseHyperLogLog.MAX_PRECISION; p += 2) {
+            DenseHyperLogLog hll = new DenseHyperLogLog(p);
+            final int count = 100_000;
+            for (int i = 0; i < count; i++) {
+                hll.offer("value-" + i);
+            }
+            final double standardError = 1.04 / Math.sqrt(1 << p);
+            assertTrue(p + ": " + hll.cardinality(), relativeError(count, hll.cardinality()) <= 4 * standardError);
+        }
+    }
+
+    @Test
+    public void mergeEstimatesTheUnion() throws CardinalityMergeException {
+        DenseHyperLogLog a = new DenseHyperLogLog();
+        DenseHyperLogLog b = new DenseHyperLogLog();
+        DenseHyperLogLog union = new DenseHyperLogLog();
+        for (int i = 0; i < 300_000; i++) {
+            long hash = HashUtils.murmurHash64("value-" + i);
+            if (i < 200_000) a.offerHashed(hash);
+            if (i >= 100_000) b.offerHashed(hash);
+            union.offerHashed(hash);
+        }
+        final DenseHyperLogLog merged = a.merge(b);
+        assertEquals(union, merged);
+        assertEquals(union.cardinality(), merged.cardinality());
+        assertFalse(a.equals(merged));
+
+        a.addAll(b);
+        assertEquals(union, a);
+        assertEquals(union.hashCode(), a.hashCode());
+        assertFalse(a.offerHashed(HashUtils.murmurHash64("value-1")));
+
+        try {
+            a.addAll(new DenseHyperLogLog(14));
+            throw new AssertionError("sketches of different precisions must not be merged");
+        } catch (CardinalityMergeException expected) {
+            // expected
+        }
+        try {
+            new DenseHyperLogLog(DenseHyperLogLog.MAX_PRECISION + 1);
+            throw new AssertionError("an unsupported precision must be rejected");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void offersGiveTheEstimatesOfHyperLogLogPlus() {
+        final long[] hashes = new long[1 << 22];
+        final Random random = new Random(71);
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        long denseNanos = Long.MAX_VALUE;
+        long plusNanos = Long.MAX_VALUE;
+        // the best of a few rounds, the first ones warm the JIT up
+        for (int round = 0; round < 5; round++) {
+            DenseHyperLogLog dense = new DenseHyperLogLog();
+            long start = System.nanoTime();
+            for (long hash : hashes) {
+                dense.offerHashed(hash);
+            }
+            denseNanos = Math.min(denseNanos, System.nanoTime() - start);
+
+            HyperLogLogPlus plus = new HyperLogLogPlus(16);
+            start = System.nanoTime();
+            for (long hash : hashes) {
+                plus.offerHashed(hash);
+            }
+            plusNanos = Math.min(plusNanos, System.nanoTime() - start);
+            assertTrue(relativeError(plus.cardinality(), dense.cardinality()) < 0.01);
+        }
+        // the timings are only reported, they depend too much on the machine to be asserted
+        System.out.println("DenseHyperLogLog offers " + hashes.length + " hashes in " + denseNanos / 1_000_000
+                + " ms, HyperLogLogPlus in " + plusNanos / 1_000_000 + " ms");
+    }
+
+    @Test
+    public void histogramCountsEveryRegister() {
+        final Random random = new Random(101);
+        final int maxRank = 64 - DenseHyperLogLog.MIN_PRECISION + 1;
+        final byte[] registers = new byte[(1 << 12) + 3];
+        final int[] expected = new int[66];
+        for (int i = 0; i < registers.length; i++) {
+            // runs of equal values, as in real sketches, and the extreme ranks
+            registers[i] = i % 100 < 50 ? 7 : (byte) (random.nextBoolean() ? maxRank : random.nextInt(maxRank + 1));
+            expected[registers[i]]++;
+        }
+        assertArrayEquals(expected, DenseHyperLogLog.histogram(registers));
+    }
+
+    @Test
+    public void mergeAndEstimateGiveTheResultsOfTheScalarLoops() throws CardinalityMergeException {
+        final Random random = new Random(103);
+        final int SKETCHES = 8;
+        final DenseHyperLogLog[] sketches = new DenseHyperLogLog[SKETCHES];
+        for (int s = 0; s < SKETCHES; s++) {
+            sketches[s] = new DenseHyperLogLog();
+            for (int i = 0; i < 10_000 << s; i++) {
+                sketches[s].offerHashed(random.nextLong());
+            }
+        }
+        long kernelNanos = Long.MAX_VALUE;
+        long scalarNanos = Long.MAX_VALUE;
+        // the union of every pair, as the all-pairs similarity tests do; the best of a few rounds
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            final long[] kernel = new long[SKETCHES * SKETCHES];
+            for (int i = 0; i < SKETCHES; i++) {
+                for (int j = i + 1; j < SKETCHES; j++) {
+                    kernel[i * SKETCHES + j] = sketches[i].merge(sketches[j]).cardinality();
+                }
+            }
+            kernelNanos = Math.min(kernelNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            final long[] scalar = new long[SKETCHES * SKETCHES];
+            for (int i = 0; i < SKETCHES; i++) {
+                for (int j = i + 1; j < SKETCHES; j++) {
+                    scalar[i * SKETCHES + j] = scalarUnionCardinality(sketches[i], sketches[j]);
+                }
+            }
+            scalarNanos = Math.min(scalarNanos, System.nanoTime() - start);
+            assertArrayEquals(scalar, kernel);
+        }
+        // the timings are only reported, they depend too much on the machine to be asserted
+        System.out.println("DenseHyperLogLog merges and estimates " + SKETCHES * (SKETCHES - 1) / 2 + " pairs in "
+                + kernelNanos / 1_000 + " us, the branching byte loops in " + scalarNanos / 1_000 + " us");
+    }
+
+    /**
+     * The merge and the histogram as they were before the branch-free loops: a compare per register, and a single
+     * array of counts
+     */
+    private static long scalarUnionCardinality(DenseHyperLogLog first, DenseHyperLogLog second) {
+        final byte[] union = first.getRegisters().clone();
+        final byte[] other = second.getRegisters();
+        for (int i = 0; i < union.length; i++) {
+            if (other[i] > union[i]) union[i] = other[i];
+        }
+        final int[] counts = new int[66];
+        for (byte register : union) {
+            counts[register]++;
+        }
+        return Math.round(DenseHyperLogLog.estimate(counts, first.getPrecision()));
+    }
+
+    private static double relativeError(long expected, long actual) {
+        return expected == 0 ? actual : Math.abs(actual - expected) / (double) expected;
+    }
+}
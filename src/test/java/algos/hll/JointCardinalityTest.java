@@ -0,0 +1,89 @@
+package algos.hll;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4ClassRunner.class)
+public class JointCardinalityTest {
+
+    @Test
+    public void smallIntersectionsOfSkewedSetsAreMoreAccurateThanInclusionExclusion() throws CardinalityMergeException {
+        final Random random = new Random(79);
+        final int TRIALS = 10;
+        // |A\B|, |B\A|, intersection
+        final int[][] cases = {
+                {10_000, 1_000_000, 1_000},
+                {100_000, 100_000, 2_000},
+                {1_000, 3_000_000, 9_000},
+                {50_000, 50_000, 50_000}
+        };
+        for (int[] sizes : cases) {
+            double jointError = 0;
+            double inclusionExclusionError = 0;
+            for (int trial = 0; trial < TRIALS; trial++) {
+                DenseHyperLogLog a = new DenseHyperLogLog();
+                DenseHyperLogLog b = new DenseHyperLogLog();
+                for (int i = 0; i < sizes[0]; i++) a.offerHashed(random.nextLong());
+                for (int i = 0; i < sizes[1]; i++) b.offerHashed(random.nextLong());
+                for (int i = 0; i < sizes[2]; i++) {
+                    long hash = random.nextLong();
+                    a.offerHashed(hash);
+                    b.offerHashed(hash);
+                }
+                JointCardinality joint = JointCardinality.estimate(a, b);
+                jointError += Math.abs(joint.getIntersection() - sizes[2]) / sizes[2];
+                long inclusionExclusion = a.cardinality() + b.cardinality() - a.merge(b).cardinality();
+                inclusionExclusionError += Math.abs(inclusionExclusion - sizes[2]) / (double) sizes[2];
+
+                assertEquals(sizes[0], joint.getFirstOnly(), 0.05 * sizes[0] + 0.1 * sizes[2]);
+                assertEquals(sizes[1], joint.getSecondOnly(), 0.05 * sizes[1] + 0.1 * sizes[2]);
+                assertEquals(a.cardinality(), joint.getFirst(), 0.02 * a.cardinality());
+                assertEquals(b.cardinality(), joint.getSecond(), 0.02 * b.cardinality());
+            }
+            jointError /= TRIALS;
+            inclusionExclusionError /= TRIALS;
+            System.out.println("Intersection of " + sizes[0] + " + " + sizes[2] + " and " + sizes[1] + " + " + sizes[2]
+                    + ": joint error " + jointError + ", inclusion-exclusion error " + inclusionExclusionError);
+            assertTrue(jointError + " vs " + inclusionExclusionError, jointError <= inclusionExclusionError);
+        }
+    }
+
+    @Test
+    public void identicalAndDisjointSketches() throws CardinalityMergeException {
+        final Random random = new Random(83);
+        DenseHyperLogLog a = new DenseHyperLogLog();
+        DenseHyperLogLog b = new DenseHyperLogLog();
+        for (int i = 0; i < 200_000; i++) {
+            a.offerHashed(random.nextLong());
+            b.offerHashed(random.nextLong());
+        }
+        JointCardinality same = JointCardinality.estimate(a, a.copy());
+        assertEquals(a.cardinality(), same.getIntersection(), 0.01 * a.cardinality());
+        assertEquals(0, same.getFirstOnly(), 1);
+        assertEquals(0, same.getSecondOnly(), 1);
+        assertEquals(1, same.getJaccard(), 0.001);
+
+        JointCardinality disjoint = JointCardinality.estimate(a, b);
+        assertEquals(0, disjoint.getIntersection(), 0.01 * a.cardinality());
+        assertEquals(0, disjoint.getJaccard(), 0.01);
+        assertEquals(a.merge(b).cardinality(), disjoint.getUnion(), 0.02 * disjoint.getUnion());
+
+        JointCardinality empty = JointCardinality.estimate(new DenseHyperLogLog(), new DenseHyperLogLog());
+        assertEquals(0, empty.getUnion(), 0);
+        assertEquals(0, empty.getJaccard(), 0);
+
+        try {
+            JointCardinality.estimate(a, new DenseHyperLogLog(12));
+            throw new AssertionError("sketches of different precisions must not be compared");
+        } catch (CardinalityMergeException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package algos.hll;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4ClassRunner.class)
+public class SparseHyperLogLogTest {
+
+    @Test
+    public void convertsToTheRegistersOfADenseSketch() {
+        final int[][] precisions = {{16, 25}, {12, 20}, {14, 14}};
+        final Random random = new Random(89);
+        for (int[] precision : precisions) {
+            SparseHyperLogLog sparse = new SparseHyperLogLog(precision[0], precision[1]);
+            DenseHyperLogLog dense = new DenseHyperLogLog(precision[0]);
+            int offered = 0;
+            for (int count : new int[]{1, 10, 100, 1_000, 100_000}) {
+                for (; offered < count; offered++) {
+                    // some hashes with many leading zeros after the top p bits, so the ranks spill over sp
+                    long hash = random.nextInt(4) == 0 ? random.nextLong() >>> 40 : random.nextLong();
+                    sparse.offerHashed(hash);
+                    dense.offerHashed(hash);
+                }
+                assertEquals(dense, sparse.toDenseHyperLogLog());
+                assertEquals(count < (1 << precision[0]) / 4, sparse.isSparse());
+            }
+            assertFalse(sparse.isSparse());
+            assertEquals(dense.cardinality(), sparse.cardinality());
+            assertEquals(dense.sizeof(), sparse.sizeof());
+        }
+    }
+
+    @Test
+    public void smallSketchesAreSmallAndAccurate() throws Exception {
+        SparseHyperLogLog sketch = new SparseHyperLogLog();
+        for (int i = 0; i < 300; i++) {
+            sketch.offer("value-" + i);
+        }
+        assertTrue(sketch.isSparse());
+        assertEquals(300, sketch.cardinality());
+        assertTrue(String.valueOf(sketch.sizeof()), sketch.sizeof() < 2_000);
+        assertEquals(300, sketch.toDenseHyperLogLog().cardinality(), 5);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(sketch);
+        }
+        assertTrue(String.valueOf(bytes.size()), bytes.size() < 2_000);
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertEquals(sketch, in.readObject());
+        }
+    }
+
+    @Test
+    public void mergesSparseAndDenseSketches() throws CardinalityMergeException {
+        final Random random = new Random(97);
+        SparseHyperLogLog small1 = new SparseHyperLogLog();
+        SparseHyperLogLog small2 = new SparseHyperLogLog();
+        SparseHyperLogLog large = new SparseHyperLogLog();
+        DenseHyperLogLog union = new DenseHyperLogLog();
+        SparseHyperLogLog expected = new SparseHyperLogLog();
+        for (int i = 0; i < 100_000; i++) {
+            long hash = random.nextLong();
+            if (i < 1_000) expected.offerHashed(hash);
+            if (i < 500) small1.offerHashed(hash);
+            if (i >= 300 && i < 1_000) small2.offerHashed(hash);
+            large.offerHashed(hash);
+            union.offerHashed(hash);
+        }
+        assertFalse(large.isSparse());
+
+        SparseHyperLogLog smalls = small1.copy().addAll(small2);
+        assertTrue(smalls.isSparse());
+        assertEquals(1_000, smalls.cardinality());
+        assertEquals(expected, smalls);
+
+        assertEquals(union, small1.copy().addAll(large).toDenseHyperLogLog());
+        assertEquals(union, large.copy().addAll(small2).toDenseHyperLogLog());
+        assertTrue(small1.isSparse());
+
+        // enough small sketches merged together become dense
+        SparseHyperLogLog merged = new SparseHyperLogLog(10, 20);
+        DenseHyperLogLog mergedUnion = new DenseHyperLogLog(10);
+        for (int s = 0; s < 10; s++) {
+            SparseHyperLogLog part = new SparseHyperLogLog(10, 20);
+            for (int i = 0; i < 100; i++) {
+                long hash = random.nextLong();
+                part.offerHashed(hash);
+                mergedUnion.offerHashed(hash);
+            }
+            assertTrue(part.isSparse());
+            merged.addAll(part);
+        }
+        assertFalse(merged.isSparse());
+        assertEquals(mergedUnion, merged.toDenseHyperLogLog());
+
+        try {
+            small1.addAll(new SparseHyperLogLog(16, 20));
+            throw new AssertionError("sketches of different precisions must not be merged");
+        } catch (CardinalityMergeException expectedException) {
+            // expected
+        }
+        try {
+            new SparseHyperLogLog(16, 15);
+            throw new AssertionError("a sparse precision below the dense one must be rejected");
+        } catch (IllegalArgumentException expectedException) {
+            // expected
+        }
+    }
+
+    @Test
+    public void sparseAndDenseSketchesOfTheSameRegistersAreEqual() throws CardinalityMergeException {
+        // p = 4 and sp = 8: 16 registers, and up to 4 entries while sparse
+        final long first = hash(0, 0b1000);
+        final long second = hash(0, 0b1001);
+        final long third = hash(0, 0b1010);
+        SparseHyperLogLog a = new SparseHyperLogLog(4, 8);
+        SparseHyperLogLog b = new SparseHyperLogLog(4, 8);
+        for (int index = 1; index < 4; index++) {
+            a.offerHashed(hash(index, 0b0100));
+            b.offerHashed(hash(index, 0b0100));
+        }
+        // different finer registers, the same register 0 of rank 1 at precision 4
+        a.offerHashed(first);
+        b.offerHashed(second);
+        assertTrue(a.isSparse());
+        assertTrue(b.isSparse());
+        SparseHyperLogLog c = a.copy();
+        c.offerHashed(third);
+        assertFalse(c.isSparse());
+
+        assertEquals(a, b);
+        assertEquals(b, c);
+        assertEquals(a, c);
+        assertEquals(c, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(a.hashCode(), c.hashCode());
+        b.offerHashed(hash(5, 0b0001));
+        assertFalse(b.equals(c));
+
+        // two sparse sketches merged into more entries than the threshold become dense, as single offers do
+        SparseHyperLogLog left = new SparseHyperLogLog(4, 8);
+        SparseHyperLogLog right = new SparseHyperLogLog(4, 8);
+        left.offerHashed(hash(1, 0b0001));
+        left.offerHashed(hash(2, 0b0001));
+        right.offerHashed(hash(3, 0b0001));
+        right.offerHashed(hash(4, 0b0001));
+        assertTrue(left.copy().addAll(right).isSparse());
+        right.offerHashed(hash(5, 0b0001));
+        assertFalse(left.addAll(right).isSparse());
+
+        // the dense sketch handed out is a copy
+        DenseHyperLogLog registers = c.toDenseHyperLogLog();
+        registers.offerHashed(hash(7, 0b0001));
+        assertEquals(a, c);
+    }
+
+    /**
+     * @return a hash selecting the given register at precision 4, with the given 4 bits below it
+     */
+    private static long hash(int index, int between) {
+        return (long) index << 60 | (long) between << 56 | 1L;
+    }
+}
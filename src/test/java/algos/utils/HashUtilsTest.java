@@ -0,0 +1,60 @@
+package algos.utils;
+
+import com.clearspring.analytics.hash.MurmurHash;
+import org.junit.Test;
+import org.junit.internal.runners.JUnit4ClassRunner;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Hashes of HashUtils must be bit-identical to stream-lib ones, otherwise sketches built by different paths
+ * can't be compared or merged
+ */
+@RunWith(JUnit4ClassRunner.class)
+public class HashUtilsTest {
+
+    @Test
+    public void testSameHashesAsMurmurHash() {
+        final Random random = new Random(42);
+        for (int length = 0; length < 100; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            // put the bytes in the middle of a bigger buffer to check offsets
+            byte[] buffer = new byte[length + 10];
+            System.arraycopy(bytes, 0, buffer, 7, length);
+            assertEquals(MurmurHash.hash(bytes), HashUtils.murmurHash(buffer, 7, length));
+            assertEquals(MurmurHash.hash(bytes, length, 13), HashUtils.murmurHash(buffer, 7, length, 13));
+            assertEquals(MurmurHash.hash64(bytes, length), HashUtils.murmurHash64(buffer, 7, length));
+            assertEquals(MurmurHash.hash64(bytes, length, 13), HashUtils.murmurHash64(buffer, 7, length, 13));
+            assertEquals(MurmurHash.hash64(bytes, length), HashUtils.murmurHash64(Arrays.copyOf(bytes, length), 0, length));
+        }
+    }
+
+    @Test
+    public void testSameStringHashesAsMurmurHash() {
+        final Random random = new Random(42);
+        final List<String> strings = new ArrayList<>(Arrays.asList(
+                "", "a", UUID.randomUUID().toString(), "\u00e9t\u00e9", "\u4e2d\u6587", "\ud83d\ude00", "broken \ud83d surrogate", "\udc00"
+        ));
+        for (int i = 0; i < 1000; i++) {
+            char[] chars = new char[random.nextInt(600)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) (i % 2 == 0 ? random.nextInt(0x80) : random.nextInt(Character.MAX_VALUE + 1));
+            }
+            strings.add(new String(chars));
+        }
+        for (String str : strings) {
+            final byte[] bytes = str.getBytes();
+            assertEquals(MurmurHash.hash(bytes), HashUtils.murmurHash(str));
+            assertEquals(MurmurHash.hash64(bytes, bytes.length), HashUtils.murmurHash64(str));
+            assertEquals(MurmurHash.hash64(bytes, bytes.length), HashUtils.murmurHash64(new StringBuilder(str)));
+        }
+    }
+}
@@ -3,6 +3,7 @@ package algos.utils;
 import org.junit.Test;
 import org.junit.internal.runners.JUnit4ClassRunner;
 import org.junit.runner.RunWith;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
@@ -82,6 +83,23 @@ public class OnDiskDatasetUtilsTest {
         performFuncOnFileBatchByBatch(fileName, consumer, batchSize);
     }
 
+    @Test
+    public void testReadingBatchByBatchWithPartialLastBatch() {
+        String fileName = "test-file";
+        //write file
+        List<String> input = IntStream.range(0, 105).boxed().map(Object::toString).collect(Collectors.toList());
+        Supplier<String> supplier = () -> input.remove(0);
+        persistDataToFile(fileName, 105, supplier, false);
+        //read file
+        final List<String[]> batches = new ArrayList<>();
+        performFuncOnFileBatchByBatch(fileName, batches::add, 10);
+        //make assertions
+        assertEquals(11, batches.size());
+        assertEquals(5, batches.get(10).length);
+        String[] expectedResult = IntStream.range(0, 105).boxed().map(Object::toString).toArray(String[]::new);
+        assertTrue(Arrays.equals(expectedResult, batches.stream().flatMap(Stream::of).toArray(String[]::new)));
+    }
+
     @Test
     public void test_copyFileToFile() {
         String origin = "test-file-1";
@@ -120,4 +138,17 @@ public class OnDiskDatasetUtilsTest {
                 .toArray(String[]::new);
         assertTrue(Arrays.equals(expectedResult, result));
     }
+
+    @Test
+    public void test_makeSketchesFromFileInParallel() {
+        String fileName = "test-file";
+        persistDataToFile(fileName, 100_000, RANDOM_SUPPLIER, false);
+        //parallel ingestion must give exactly the same sketches as the sequential one
+        assertEquals(makeBitSetFromFile(fileName), makeBitSetFromFileInParallel(fileName, 4));
+        assertEquals(makeHLLFromFile(fileName).cardinality(), makeHLLFromFileInParallel(fileName, 4).cardinality());
+        //more workers than rows
+        persistDataToFile(fileName, 3, RANDOM_SUPPLIER, false);
+        assertEquals(makeBitSetFromFile(fileName), makeBitSetFromFileInParallel(fileName, 8));
+        assertEquals(3, makeHLLFromFileInParallel(fileName, 8).cardinality());
+    }
 }